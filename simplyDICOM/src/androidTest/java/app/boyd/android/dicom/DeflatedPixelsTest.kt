@@ -0,0 +1,125 @@
+package app.boyd.android.dicom
+
+import android.net.Uri
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.dcm4che3.data.Attributes
+import org.dcm4che3.data.Tag
+import org.dcm4che3.data.UID
+import org.dcm4che3.data.VR
+import org.dcm4che3.io.DicomInputStream
+import org.dcm4che3.io.DicomOutputStream
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.android.OpenCVLoader
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import java.io.File
+import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Deflated files are inflated while they're parsed, so their pixels have no offset in the file.
+ * Every read path must still decode them from the parsed stream.
+ */
+@RunWith(AndroidJUnit4::class)
+class DeflatedPixelsTest {
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val pixels = ShortArray(ROWS * COLS) { (it * 37 % 4096).toShort() }
+    private val expected = Mat(ROWS, COLS, CvType.CV_16U).apply { put(0, 0, pixels) }
+
+    // A 16-bit monochrome image in [transferSyntax]
+    private fun writeFile(transferSyntax: String): File {
+        val dataset = Attributes()
+        dataset.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage)
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, "1.2.826.0.1.3680043.2.1125.1")
+        dataset.setInt(Tag.Rows, VR.US, ROWS)
+        dataset.setInt(Tag.Columns, VR.US, COLS)
+        dataset.setInt(Tag.SamplesPerPixel, VR.US, 1)
+        dataset.setInt(Tag.BitsAllocated, VR.US, 16)
+        dataset.setInt(Tag.BitsStored, VR.US, 16)
+        dataset.setInt(Tag.PixelRepresentation, VR.US, 0)
+        val bytes = ByteBuffer.allocate(pixels.size * 2).order(ByteOrder.LITTLE_ENDIAN)
+        bytes.asShortBuffer().put(pixels)
+        dataset.setBytes(Tag.PixelData, VR.OW, bytes.array())
+
+        val file = File.createTempFile("deflated", ".dcm", context.cacheDir)
+        file.deleteOnExit()
+        DicomOutputStream(file).use { it.writeDataset(dataset.createFileMetaInformation(transferSyntax), dataset) }
+        return file
+    }
+
+    private fun assertPixels(mat: Mat?) {
+        assertNotNull(mat)
+        assertEquals(0.0, Core.norm(mat, expected, Core.NORM_INF), 0.0)
+    }
+
+    private fun probe(file: File): DcmProbe = FileInputStream(file).use { it.map() }!!.loadAttributes(false)!!
+
+    @Test
+    fun probeHasNoFileOffset() {
+        assertFalse(probe(writeFile(UID.DeflatedExplicitVRLittleEndian)).pixelData!!.hasFileOffset)
+        assertTrue(probe(writeFile(UID.ExplicitVRLittleEndian)).pixelData!!.hasFileOffset)
+    }
+
+    @Test
+    fun mappedLoad() {
+        val file = writeFile(UID.DeflatedExplicitVRLittleEndian)
+        assertPixels(FileInputStream(file).use { it.map() }!!.loadAttributes()?.mat)
+    }
+
+    @Test
+    fun streamedLoad() {
+        val file = writeFile(UID.DeflatedExplicitVRLittleEndian)
+        assertPixels(FileInputStream(file).use { it.loadAttributes() }?.mat)
+    }
+
+    @Test
+    fun readPixels() {
+        val file = writeFile(UID.DeflatedExplicitVRLittleEndian)
+        val dst = Mat(ROWS, COLS, CvType.CV_16U)
+        assertTrue(context.readPixels(Uri.fromFile(file), dst))
+        assertPixels(dst)
+    }
+
+    @Test
+    fun readPixelsFromProbe() {
+        // As a paged series reads its slices
+        val file = writeFile(UID.DeflatedExplicitVRLittleEndian)
+        val probe = probe(file)
+        val dst = Mat(ROWS, COLS, CvType.CV_16U)
+        assertTrue(context.readPixels(Uri.fromFile(file), DcmProbe(probe.attributes, probe.pixelData), dst))
+        assertPixels(dst)
+    }
+
+    @Test
+    fun infoPanelRead() {
+        // As DcmInfoFragment reads a file: the header from the mapping, then the pixels wherever they can be
+        val file = writeFile(UID.DeflatedExplicitVRLittleEndian)
+        val mapped = FileInputStream(file).use { it.map() }!!
+        val mat = DicomInputStream(ByteBufferInputStream(mapped)).use { dis ->
+            val probe = dis.probeAttributes(dis.fileMetaInformation ?: Attributes())
+            dis.readMat(probe, mapped)
+        }
+        assertPixels(mat)
+    }
+
+    companion object {
+        private const val ROWS = 64
+        private const val COLS = 48
+
+        @BeforeClass
+        @JvmStatic
+        fun loadOpenCV() {
+            assertTrue(OpenCVLoader.initDebug())
+        }
+    }
+}
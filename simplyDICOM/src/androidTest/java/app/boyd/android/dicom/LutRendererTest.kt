@@ -0,0 +1,90 @@
+package app.boyd.android.dicom
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.android.OpenCVLoader
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+
+/**
+ * LutRenderer must draw what adjustContrast followed by toBitmap did, for every pixel type.
+ *
+ * Both round the windowed value to a palette level, but convertTo works in single precision, so values
+ * close to the middle of two levels may round the other way: a pixel may be one level off, never more.
+ */
+@RunWith(AndroidJUnit4::class)
+class LutRendererTest {
+    private fun assertMatches(type: Int, low: Double, high: Double, invert: Boolean, colormap: Int) {
+        // Tall enough to be split into several bands
+        val mat = Mat(ROWS, COLS, type)
+        Core.setRNGSeed(type)
+        Core.randu(mat, low, high)
+        val minMax = Core.minMaxLoc(mat)
+        val span = minMax.maxVal - minMax.minVal
+        val width = span * 0.6
+        val windowLow = minMax.minVal + span * 0.1
+
+        val pixels = LutRenderer().renderPixels(mat, LutParams(1.0, 0.0, windowLow, width, invert, colormap))
+
+        val levels = mat.adjustContrast(width, windowLow, invert)
+        val levelBytes = ByteArray(ROWS * COLS)
+        levels.get(0, 0, levelBytes)
+        val expected = levels.toBitmap(colormap)
+        val expectedPixels = IntArray(ROWS * COLS)
+        expected.getPixels(expectedPixels, 0, COLS, 0, 0, COLS, ROWS)
+
+        val palette = LutRenderer.palette(colormap)
+        val name = "type $type invert $invert colormap $colormap"
+        for (i in 0 until ROWS * COLS) {
+            val level = levelBytes[i].toInt() and 0xFF
+            // The palette is the colormap toBitmap draws
+            assertEquals(name, palette[level], expectedPixels[i])
+            val near = (level - 1).coerceAtLeast(0)..(level + 1).coerceAtMost(255)
+            assertTrue("$name pixel $i", near.any { palette[it] == pixels[i] })
+        }
+    }
+
+    private fun assertMatchesAll(type: Int, low: Double, high: Double) {
+        for (colormap in intArrayOf(-1, 2, 11)) {
+            for (invert in listOf(false, true)) {
+                assertMatches(type, low, high, invert, colormap)
+            }
+        }
+    }
+
+    @Test
+    fun unsigned8() {
+        assertMatchesAll(CvType.CV_8U, 0.0, 256.0)
+    }
+
+    @Test
+    fun unsigned16() {
+        assertMatchesAll(CvType.CV_16U, 0.0, 4096.0)
+    }
+
+    @Test
+    fun signed16() {
+        assertMatchesAll(CvType.CV_16S, -2048.0, 2048.0)
+    }
+
+    @Test
+    fun signed32() {
+        assertMatchesAll(CvType.CV_32S, -100000.0, 100000.0)
+    }
+
+    companion object {
+        private const val ROWS = 300
+        private const val COLS = 257
+
+        @BeforeClass
+        @JvmStatic
+        fun loadOpenCV() {
+            assertTrue(OpenCVLoader.initDebug())
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import org.opencv.core.Mat
+
+/**
+ * Times plane extraction from a [DcmVolume]'s slices against a [BrickedVolume] copy of it,
+ * for transverse, coronal and sagittal planes and oblique planes at 45°.
+ * Slice-major planes are read without axis-major copies, so both sides start from one layout of the data.
+ */
+class PlaneBenchmark(private val volume: DcmVolume, private val bricks: BrickedVolume,
+                     private val spacing: DoubleArray) {
+    /** Throughput in millions of output pixels per second */
+    class Result(val name: String, val sliceMajor: Double, val bricked: Double) {
+        override fun toString(): String {
+            return "%s: slice-major %.1f, bricked %.1f Mpx/s".format(name, sliceMajor, bricked)
+        }
+    }
+
+    // Not shared with the volume's own plane buffers, so the viewer can keep browsing meanwhile
+    private val dst = Mat()
+    private val column = Mat()
+
+    /*
+     * Time [planes] planes along each orientation, spread through the volume, after one untimed pass.
+     */
+    fun run(planes: Int = PLANES): List<Result> {
+        val oblique = ObliqueSeries(volume, spacing).apply { angle = 45.0 }
+        return listOf(
+                compare("Transverse", volume.depth, planes,
+                        { volume.copyStridedPlane(Axis.TRANSVERSE, it, dst, column) },
+                        { bricks.plane(Axis.TRANSVERSE, it, dst) }),
+                compare("Coronal", volume.rows, planes,
+                        { volume.copyStridedPlane(Axis.CORONAL, it, dst, column) },
+                        { bricks.plane(Axis.CORONAL, it, dst) }),
+                compare("Sagittal", volume.cols, planes,
+                        { volume.copyStridedPlane(Axis.SAGITTAL, it, dst, column) },
+                        { bricks.plane(Axis.SAGITTAL, it, dst) }),
+                compare("Oblique 45°", oblique.size(Axis.OBLIQUE), planes,
+                        { oblique.plane(Axis.OBLIQUE, it).copyTo(dst) },
+                        { bricks.resample(oblique.obliquePlane(it), spacing, 0.0, dst) }))
+    }
+
+    private fun compare(name: String, size: Int, planes: Int, sliceMajor: (Int) -> Unit, bricked: (Int) -> Unit): Result {
+        return Result(name, time(size, planes, sliceMajor), time(size, planes, bricked))
+    }
+
+    // Output pixels per microsecond, i.e. millions per second
+    private fun time(size: Int, planes: Int, extract: (Int) -> Unit): Double {
+        val indices = IntArray(planes.coerceAtMost(size)) { it * size / planes.coerceAtMost(size) }
+        // Warm up the JIT and any lazily allocated buffers
+        indices.forEach(extract)
+        var pixels = 0L
+        val start = System.nanoTime()
+        for (index in indices) {
+            extract(index)
+            pixels += dst.total()
+        }
+        val micros = (System.nanoTime() - start) / 1000.0
+        return if (micros > 0.0) pixels / micros else 0.0
+    }
+
+    companion object {
+        private const val PLANES = 16
+    }
+}
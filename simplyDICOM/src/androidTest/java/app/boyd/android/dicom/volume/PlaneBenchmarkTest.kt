@@ -0,0 +1,92 @@
+package app.boyd.android.dicom.volume
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import app.boyd.android.dicom.Axis
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.opencv.android.OpenCVLoader
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+
+/**
+ * Checks that planes come out of a bricked volume as they do from its slices, then logs how fast
+ * each is on the device under test: run it explicitly when tuning the brick size, and read the
+ * results from logcat (tag "cpb").
+ */
+@RunWith(AndroidJUnit4::class)
+class PlaneBenchmarkTest {
+    private val spacing = doubleArrayOf(0.7, 0.7, 1.25)
+
+    // A typical CT series. Every voxel differs along each axis, so a misplaced one shows; linear,
+    // so interpolating it is exact but for rounding.
+    private fun volume(): DcmVolume {
+        val volume = DcmVolume(DEPTH, SIZE, SIZE, CvType.CV_16S)
+        val slice = ShortArray(SIZE * SIZE)
+        for (z in 0 until DEPTH) {
+            for (y in 0 until SIZE) {
+                for (x in 0 until SIZE) {
+                    slice[y * SIZE + x] = (x + 2 * y + 3 * z).toShort()
+                }
+            }
+            volume.slice(z).put(0, 0, slice)
+        }
+        return volume
+    }
+
+    private fun assertPlanes(volume: DcmVolume, bricks: BrickedVolume) {
+        val dst = Mat()
+        for (axis in listOf(Axis.TRANSVERSE, Axis.CORONAL, Axis.SAGITTAL)) {
+            val size = volume.size(axis)
+            // Either side of a brick edge, and the padded last brick
+            for (index in intArrayOf(0, 15, 16, size / 2, size - 1)) {
+                bricks.plane(axis, index, dst)
+                assertEquals("$axis $index", 0.0, Core.norm(dst, volume.plane(axis, index), Core.NORM_INF), 0.0)
+            }
+        }
+    }
+
+    private fun assertResamples(volume: DcmVolume, bricks: BrickedVolume) {
+        val oblique = ObliqueSeries(volume, spacing).apply { angle = 45.0 }
+        val dst = Mat()
+        val size = oblique.size(Axis.OBLIQUE)
+        for (index in intArrayOf(size / 4, size / 2, size * 3 / 4)) {
+            bricks.resample(oblique.obliquePlane(index), spacing, 0.0, dst)
+            // remap's weights are fixed point, so its samples may round a little differently
+            assertEquals("Oblique $index", 0.0, Core.norm(dst, oblique.plane(Axis.OBLIQUE, index), Core.NORM_INF), 2.0)
+        }
+    }
+
+    @Test
+    fun planes() {
+        val volume = volume()
+
+        val start = System.nanoTime()
+        val bricks = BrickedVolume.build(volume)!!
+        Log.i("cpb", "Bricked ${bricks.byteCount} bytes in ${(System.nanoTime() - start) / 1000000} ms")
+
+        assertPlanes(volume, bricks)
+        assertResamples(volume, bricks)
+
+        val results = PlaneBenchmark(volume, bricks, spacing).run()
+        results.forEach { Log.i("cpb", "Planes $it") }
+
+        assertEquals(4, results.size)
+        results.forEach { assertTrue(it.toString(), it.sliceMajor > 0.0 && it.bricked > 0.0) }
+    }
+
+    companion object {
+        private const val DEPTH = 200
+        private const val SIZE = 512
+
+        @BeforeClass
+        @JvmStatic
+        fun loadOpenCV() {
+            assertTrue(OpenCVLoader.initDebug())
+        }
+    }
+}
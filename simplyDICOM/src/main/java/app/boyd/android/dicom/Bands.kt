@@ -0,0 +1,41 @@
+package app.boyd.android.dicom
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Threads for splitting per-frame pixel work into bands of rows, shared by every renderer.
+ * Bands are short-lived, so the threads mostly sit idle.
+ */
+internal val renderPool: ExecutorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) { runnable ->
+    Thread(runnable, "RenderPool").apply { isDaemon = true }
+}
+
+/*
+ * Run [body] over rows [0, rows), split into a band per core (each at least [minRows] long).
+ * The calling thread takes the first band; anything a band throws is rethrown here.
+ */
+internal fun forEachBand(rows: Int, minRows: Int, body: (first: Int, last: Int) -> Unit) {
+    val count = Runtime.getRuntime().availableProcessors().coerceAtMost(rows / minRows).coerceAtLeast(1)
+    if (count == 1) {
+        body(0, rows)
+        return
+    }
+    val done = CountDownLatch(count - 1)
+    var error: Throwable? = null
+    for (i in 1 until count) {
+        renderPool.execute {
+            try {
+                body(rows * i / count, rows * (i + 1) / count)
+            } catch (t: Throwable) {
+                error = t
+            } finally {
+                done.countDown()
+            }
+        }
+    }
+    body(0, rows / count)
+    done.await()
+    error?.let { throw it }
+}
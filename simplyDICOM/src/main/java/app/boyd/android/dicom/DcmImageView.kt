@@ -3,28 +3,48 @@ package app.boyd.android.dicom
 import android.app.Activity
 import android.content.Context
 import android.content.ContextWrapper
+import android.graphics.Bitmap
 import android.graphics.Matrix
+import android.graphics.RectF
 import android.os.Build
 import android.util.AttributeSet
 import android.util.DisplayMetrics
 import android.util.Log
+import android.util.LruCache
+import android.view.Choreographer
 import android.view.MotionEvent
 import android.view.View
 import android.view.WindowManager
 import android.widget.ImageView
 import androidx.annotation.RequiresApi
 import app.boyd.android.shared.gesture.MultiGestureDetector
+import app.boyd.android.dicom.volume.DcmSeries
+import app.boyd.android.dicom.volume.SliceStats
+import app.boyd.android.shared.image.BitmapPool
 import app.boyd.shared.Geometry
 import app.boyd.shared.coercePercent
-import org.opencv.core.Core
 import org.opencv.core.Mat
+import org.opencv.core.Rect
+import kotlin.math.ceil
+import kotlin.math.floor
 
 class DcmImageView : ImageView, View.OnTouchListener {
     interface OnContrastChangedListener {
         fun onContrastChanged(brightness: Double, contrast: Double, colormap: Int, invertCmap: Boolean)
     }
 
+    /**
+     * Takes over the two-finger rotation gesture, which otherwise rotates the image on screen.
+     */
+    interface OnRotateListener {
+        fun onRotate(degrees: Double)
+        fun onRotateEnd()
+    }
+
     private var mContrastListener: OnContrastChangedListener? = null
+    var rotateListener: OnRotateListener? = null
+    // Whether the current gesture has rotated anything, so the listener hears when it ends
+    private var mRotating = false
     private val multiDetector: MultiGestureDetector
     private var mContrast = 0.0
     private var mLastContrast = mContrast
@@ -52,12 +72,124 @@ class DcmImageView : ImageView, View.OnTouchListener {
         get() = _mat
         set(value) {
             _mat = value
+            mPyramid = value?.let { ImagePyramid(it) }
+            // An arbitrary Mat can't be matched to a cached frame
+            mPendingPlane = null
+            mPlaneRequest = null
+            frameRenderer.cancel()
+            mPlane = null
+            mPlaneStats = null
+            mRange = null
 
             // If this is the first time displaying an image, center it.
             updateScale()
             redrawImage()
         }
 
+    // Everything a displayed frame depends on, so it can be reused for as long as none of them change
+    private data class FrameKey(val axis: Axis, val index: Int, val brightness: Double, val contrast: Double,
+                                val colormap: Int, val invert: Boolean, val seriesWindow: Boolean, val level: Int)
+
+    // Stats of the displayed plane, if known; otherwise its range is found once and kept in mRange
+    private var mPlaneStats: SliceStats? = null
+    private var mRange: Pair<Double, Double>? = null
+
+    /**
+     * Render nothing while set, e.g. while hidden behind the 3D view; window changes still reach the
+     * contrast listener. Clearing it draws the latest plane with the current window.
+     */
+    var paused = false
+        set(value) {
+            if (field == value) {
+                return
+            }
+            field = value
+            if (!value) {
+                redrawImage()
+            }
+        }
+
+    /** Stats of the whole series, for windowing every slice alike. */
+    var seriesStats: SliceStats? = null
+        set(value) {
+            field = value
+            if (_seriesWindow) {
+                updateColormap()
+            }
+        }
+
+    private var _seriesWindow = false
+    /** Window relative to the series' range (if its stats are known) instead of each slice's. */
+    var seriesWindow: Boolean
+        get() = _seriesWindow
+        set(value) {
+            _seriesWindow = value
+            updateColormap()
+        }
+
+    // The series plane being displayed (if mat came from setPlane)
+    private var mPlane: Pair<Axis, Int>? = null
+    // A plane to fetch on the next display frame, or once the plane being fetched arrives
+    private class PendingPlane(val series: DcmSeries, val axis: Axis, val index: Int, val stats: SliceStats?)
+    private var mPendingPlane: PendingPlane? = null
+    // The plane being fetched by the renderer, one at a time so the series' Mat can't change under
+    // a frame. Until it arrives the current frame stays up, and renders wait for it.
+    private var mPlaneRequest: PlaneRequest? = null
+
+    // Redraws wait for the next display frame, so a burst of touch or seek bar events renders once
+    private var mRedrawScheduled = false
+    private var mRedrawCache = false
+    private val redrawCallback = Choreographer.FrameCallback {
+        mRedrawScheduled = false
+        val cacheFrame = mRedrawCache
+        mRedrawCache = false
+        if (mPendingPlane != null) {
+            // Rendered once it's fetched
+            mRedrawCache = cacheFrame
+            fetchPlane()
+        } else {
+            render(cacheFrame)
+        }
+    }
+
+    val frameCounters = FrameCounters()
+    private val frameCache = object : LruCache<FrameKey, Bitmap>((Runtime.getRuntime().maxMemory() / 8).toInt()) {
+        override fun sizeOf(key: FrameKey, value: Bitmap): Int {
+            return value.byteCount
+        }
+
+        override fun entryRemoved(evicted: Boolean, key: FrameKey, oldValue: Bitmap, newValue: Bitmap?) {
+            if (oldValue === mShown) {
+                // Still on screen, so it's recycled once it's replaced
+                mShownCached = false
+            } else {
+                bitmapPool.put(oldValue)
+            }
+        }
+    }
+
+    // Bitmaps to render into, so window/level drags don't allocate a frame per touch event
+    private val bitmapPool = BitmapPool((Runtime.getRuntime().maxMemory() / 32).toInt())
+    private val frameRenderer = FrameRenderer(bitmapPool, RenderListener())
+    // The latest frame handed to the renderer, and how to cache it; anything else that comes back is stale
+    private var mRequest: FrameRequest? = null
+    private var mRequestKey: FrameKey? = null
+    // Modality rescale (stored value * slope + intercept)
+    private var mSlope = 1.0
+    private var mIntercept = 0.0
+    // The displayed frame, and whether the frame cache owns it
+    private var mShown: Bitmap? = null
+    private var mShownCached = false
+    // Downsampled levels of the Mat, so a large image fitted to the screen renders about one pixel per screen pixel
+    private var mPyramid: ImagePyramid? = null
+    // Maps the displayed frame's pixels onto the Mat's (null if they're the same)
+    private var mShownTransform: Matrix? = null
+    // Pyramid level and region (in that level's pixels, null for all of it) of the latest frame asked for
+    private var mFrameLevel = 0
+    private var mFrameClip: Rect? = null
+    // Maps the whole Mat to the view; a clipped frame is offset to its place within it
+    private val mBaseMatrix = Matrix()
+
     private var mScaleY = 1.0f
     private var mRotDeg = 0.0f
     private var mFocusX = 0.0f
@@ -82,6 +214,59 @@ class DcmImageView : ImageView, View.OnTouchListener {
         multiDetector = MultiGestureDetector(context.applicationContext, MultiListener())
     }
 
+    /**
+     * Display plane [index] along [axis] of [series] once it's fetched, on the renderer's thread.
+     * Only the last plane set before the next display frame is fetched from the series.
+     * Its rendered frames are cached, so returning to it with the same display settings skips rendering.
+     */
+    fun setPlane(series: DcmSeries, axis: Axis, index: Int, stats: SliceStats? = null) {
+        mPendingPlane = PendingPlane(series, axis, index, stats)
+        redrawImage(cacheFrame = true)
+    }
+
+    /*
+     * Hand the pending plane to the renderer, unless it's still fetching the last one.
+     */
+    private fun fetchPlane() {
+        val plane = mPendingPlane ?: return
+        if (mPlaneRequest != null) {
+            return
+        }
+        mPendingPlane = null
+        val request = PlaneRequest(plane.series, plane.axis, plane.index, plane.stats, mRedrawCache)
+        mRedrawCache = false
+        mPlaneRequest = request
+        frameRenderer.fetch(request)
+    }
+
+    /*
+     * Switch to a fetched plane. Its pixels are only read on the renderer's thread.
+     */
+    private fun showPlane(plane: PlaneRequest, mat: Mat) {
+        _mat = mat
+        mPyramid = ImagePyramid(mat)
+        mPlane = Pair(plane.axis, plane.index)
+        mPlaneStats = plane.stats
+        mRange = null
+
+        updateScale()
+    }
+
+    /**
+     * Drop all cached frames, e.g. when a different series is loaded.
+     */
+    fun clearFrames() {
+        frameCache.evictAll()
+    }
+
+    /**
+     * Sets the modality rescale (RescaleSlope, RescaleIntercept) for the window to be expressed in.
+     */
+    fun setRescale(slope: Double = 1.0, intercept: Double = 0.0) {
+        mSlope = if (slope != 0.0) slope else 1.0
+        mIntercept = intercept
+    }
+
     fun setOnContrastChangedListener(listener: OnContrastChangedListener) {
         mContrastListener = listener
     }
@@ -97,30 +282,236 @@ class DcmImageView : ImageView, View.OnTouchListener {
         updateColormap()
     }
 
+    /*
+     * The current window and colormap, over stored values [range].
+     */
+    fun windowParams(range: Pair<Double, Double>): LutParams {
+        return windowParams(range, mSlope, mIntercept, mBrightness, mContrast, _invertCmap, _colormap)
+    }
+
+    /*
+     * Two-finger window drag: along y for brightness, otherwise contrast, from where the drag began.
+     */
+    fun dragWindow(distanceX: Float, distanceY: Float, alongY: Boolean) {
+        if (alongY) {
+            mContrast = mLastContrast
+            mBrightness = (mBrightness - distanceY / 5.0).coercePercent()
+        } else {
+            mBrightness = mLastBrightness
+            mContrast = (mContrast + distanceX / 10.0).coercePercent()
+        }
+        setImageContrast(mBrightness, mContrast)
+    }
+
+    /*
+     * Keep the window a drag left, so the next drag starts from it.
+     */
+    fun endWindowDrag() {
+        mLastContrast = mContrast
+        mLastBrightness = mBrightness
+    }
+
     private fun updateColormap() {
         redrawImage()
         mContrastListener?.onContrastChanged(mBrightness, mContrast, _colormap, _invertCmap)
     }
 
-    private fun redrawImage() {
+    /*
+     * Schedule a redraw for the next display frame; requests before then are merged into it.
+     */
+    private fun redrawImage(cacheFrame: Boolean = false) {
+        // Whatever is rendering now has been superseded
+        mRequest = null
+        mRequestKey = null
+
+        mRedrawCache = mRedrawCache || cacheFrame
+        if (paused) {
+            return
+        }
+        frameCounters.requested++
+        if (mRedrawScheduled) {
+            frameCounters.dropped++
+            return
+        }
+        mRedrawScheduled = true
+        Choreographer.getInstance().postFrameCallback(redrawCallback)
+    }
+
+    /*
+     * Frames are only cached when a plane is first shown; caching every step of a window drag
+     * would just evict the frames worth keeping.
+     */
+    private fun render(cacheFrame: Boolean) {
+        mRequest = null
+        mRequestKey = null
+        if (paused) {
+            return
+        }
+        if (mPlaneRequest != null) {
+            // Rendered with the latest settings once the plane arrives
+            return
+        }
+
         // If mat is null, clear the image
-        val mat = mat ?: return setImageDrawable(null)
+        val mat = mat ?: return clearFrame()
+
+        val pyramid = mPyramid ?: ImagePyramid(mat).also { mPyramid = it }
+        val level = pyramid.levelFor(displayScale())
+        val seriesWindow = _seriesWindow && seriesStats != null
+        // Oblique planes also depend on their angle, so they aren't cached
+        val key = mPlane?.takeIf { it.first != Axis.OBLIQUE }?.let {
+            FrameKey(it.first, it.second, mBrightness, mContrast, _colormap, _invertCmap, seriesWindow, level)
+        }
+        mFrameLevel = level
+        val cached = key?.let { frameCache.get(it) }
+        if (cached != null) {
+            frameRenderer.cancel()
+            frameCounters.cached++
+            mFrameClip = null
+            showFrame(cached, true, frameTransform(pyramid, level, null))
+            return
+        }
 
-        val minMax = Core.minMaxLoc(mat)
-        val diff = minMax.span()
-        val imWidth = (1.0 - mContrast / 100.0) * diff
-        //val imMax = imWidth + (diff - imWidth) * (1.0 - (mBrightness / 100.0)) + minMax.minVal
-        val imMin = (diff - imWidth) * (1.0 - mBrightness / 100.0) + minMax.minVal
+        val clip = clipRect(pyramid, level)
+        val request = FrameRequest(mat, windowRange(seriesWindow), mSlope, mIntercept,
+                mBrightness, mContrast, _invertCmap, _colormap, clip, pyramid, level)
+        mRequest = request
+        // Only whole frames are worth caching
+        mRequestKey = if (cacheFrame && clip == null) key else null
+        mFrameClip = clip
+        if (!frameRenderer.submit(request)) {
+            frameCounters.dropped++
+        }
+    }
 
-        val temp = mat.adjustContrast(imWidth, imMin, _invertCmap)
+    /*
+     * Stored value range the window is relative to, from cached stats where possible.
+     * Null if the renderer has to find it from the pixels.
+     */
+    private fun windowRange(seriesWindow: Boolean): Pair<Double, Double>? {
+        val stats = (if (seriesWindow) seriesStats else null) ?: mPlaneStats
+        if (stats != null) {
+            return Pair(stats.min, stats.max)
+        }
+        return mRange
+    }
 
-        // Set the image
-        try {
-            setImageBitmap(temp.toBitmap(_colormap))
-        } catch (ex: OutOfMemoryError) {
-            System.gc()
+    /*
+     * When zoomed in, only the visible region (plus a margin for panning) is rendered, so window drags cost
+     * in proportion to what's on screen. Returns null to render the whole level, if most of it is visible anyway.
+     */
+    private fun clipRect(pyramid: ImagePyramid, level: Int): Rect? {
+        val visible = visibleSource(pyramid, level) ?: return null
+        val cols = pyramid.cols(level)
+        val rows = pyramid.rows(level)
+        val marginX = (visible.width() * CLIP_MARGIN).coerceAtLeast(CLIP_ALIGN.toFloat())
+        val marginY = (visible.height() * CLIP_MARGIN).coerceAtLeast(CLIP_ALIGN.toFloat())
+        // Aligned, so small pans keep reusing the same few bitmap sizes
+        val left = (floor((visible.left - marginX) / CLIP_ALIGN).toInt() * CLIP_ALIGN).coerceAtLeast(0)
+        val top = (floor((visible.top - marginY) / CLIP_ALIGN).toInt() * CLIP_ALIGN).coerceAtLeast(0)
+        val right = (ceil((visible.right + marginX) / CLIP_ALIGN).toInt() * CLIP_ALIGN).coerceAtMost(cols)
+        val bottom = (ceil((visible.bottom + marginY) / CLIP_ALIGN).toInt() * CLIP_ALIGN).coerceAtMost(rows)
+        if (right <= left || bottom <= top) {
+            return null
+        }
+        val area = (right - left).toLong() * (bottom - top)
+        if (area > cols.toLong() * rows * CLIP_MAX_AREA) {
+            return null
+        }
+        return Rect(left, top, right - left, bottom - top)
+    }
 
-            (activity as? DcmViewer)?.showMemoryDialog()
+    /*
+     * Bounds of the region on screen, in pixels of pyramid [level].
+     */
+    private fun visibleSource(pyramid: ImagePyramid, level: Int): RectF? {
+        if (width == 0 || height == 0) {
+            return null
+        }
+        val inverse = Matrix()
+        if (!mBaseMatrix.invert(inverse)) {
+            return null
+        }
+        inverse.postScale(1.0f / pyramid.scaleX(level), 1.0f / pyramid.scaleY(level))
+        val visible = RectF(0.0f, 0.0f, width.toFloat(), height.toFloat())
+        inverse.mapRect(visible)
+        return visible
+    }
+
+    // Screen pixels per Mat pixel, along whichever axis is magnified more
+    private fun displayScale(): Double {
+        return maxOf(mScaleY * scaleY2X, mScaleY.toDouble())
+    }
+
+    /*
+     * False if zooming calls for another pyramid level, or panning has uncovered part of the Mat
+     * outside the clipped frame.
+     */
+    private fun frameCoversView(): Boolean {
+        val pyramid = mPyramid ?: return true
+        if (pyramid.levelFor(displayScale()) != mFrameLevel) {
+            return false
+        }
+        val clip = mFrameClip ?: return true
+        val visible = visibleSource(pyramid, mFrameLevel) ?: return true
+        if (!visible.intersect(0.0f, 0.0f, pyramid.cols(mFrameLevel).toFloat(), pyramid.rows(mFrameLevel).toFloat())) {
+            return true
+        }
+        return visible.left >= clip.x && visible.top >= clip.y &&
+                visible.right <= clip.x + clip.width && visible.bottom <= clip.y + clip.height
+    }
+
+    /*
+     * Maps a frame's pixels onto the Mat's: scaled up from its pyramid level, then offset by its clip.
+     */
+    private fun frameTransform(pyramid: ImagePyramid?, level: Int, clip: Rect?): Matrix? {
+        if (pyramid == null || (level == 0 && clip == null)) {
+            return null
+        }
+        val matrix = Matrix()
+        matrix.preScale(pyramid.scaleX(level), pyramid.scaleY(level))
+        if (clip != null) {
+            matrix.preTranslate(clip.x.toFloat(), clip.y.toFloat())
+        }
+        return matrix
+    }
+
+    private fun clearFrame() {
+        frameRenderer.cancel()
+        mFrameClip = null
+        showFrame(null, false, null)
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        if (mRedrawScheduled) {
+            Choreographer.getInstance().removeFrameCallback(redrawCallback)
+            mRedrawScheduled = false
+        }
+        mRequest = null
+        mRequestKey = null
+        mPlaneRequest = null
+        frameRenderer.quit()
+    }
+
+    /*
+     * Display a frame, handing the previous one back to the pool unless the frame cache owns it.
+     * [transform] maps the frame's pixels onto the Mat's, if it's downsampled or clipped.
+     */
+    private fun showFrame(bitmap: Bitmap?, cached: Boolean, transform: Matrix? = null) {
+        val previous = mShown
+        val previousCached = mShownCached
+        mShownTransform = transform
+        if (bitmap == null) {
+            setImageDrawable(null)
+        } else {
+            setImageBitmap(bitmap)
+            applyMatrix()
+        }
+        mShown = bitmap
+        mShownCached = cached
+        if (previous != null && previous !== bitmap && !previousCached) {
+            bitmapPool.put(previous)
         }
     }
 
@@ -154,27 +545,115 @@ class DcmImageView : ImageView, View.OnTouchListener {
         matrix.postScale(scaleX, mScaleY)
         matrix.postRotate(mRotDeg, scaledImageCenterX, scaledImageCenterY)
         matrix.postTranslate(mFocusX - scaledImageCenterX, mFocusY - scaledImageCenterY)
-        imageMatrix = matrix
+        mBaseMatrix.set(matrix)
+        applyMatrix()
+    }
+
+    private fun applyMatrix() {
+        val transform = mShownTransform
+        if (transform == null) {
+            imageMatrix = mBaseMatrix
+        } else {
+            val matrix = Matrix(mBaseMatrix)
+            matrix.preConcat(transform)
+            imageMatrix = matrix
+        }
     }
 
     override fun onTouch(v: View, event: MotionEvent?): Boolean {
         // If we haven't loaded the image yet, don't process any touch events
         mat ?: return false
+        if (event?.action == MotionEvent.ACTION_DOWN) {
+            // Counted per gesture, and logged when it ends
+            frameCounters.reset()
+        }
         multiDetector.onTouchEvent(event)
 
         updateMatrix()
+        if (!frameCoversView()) {
+            redrawImage()
+        }
 
         if (event?.action == MotionEvent.ACTION_UP) {
             // End scrolling if the user lifts fingers:
             multiDetector.resetScrollMode()
             // Store values in case we need them:
-            mLastContrast = mContrast
-            mLastBrightness = mBrightness
+            endWindowDrag()
+            Log.i("cpb", "Frames: $frameCounters")
+            if (mRotating) {
+                mRotating = false
+                rotateListener?.onRotateEnd()
+            }
         }
 
         return true // indicate event was handled
     }
 
+    companion object {
+        // Fraction of the visible size rendered beyond each edge when clipping
+        private const val CLIP_MARGIN = 0.25f
+        private const val CLIP_ALIGN = 32
+        // Clipping is only worthwhile if it skips at least half the Mat
+        private const val CLIP_MAX_AREA = 0.5
+    }
+
+    private inner class RenderListener : FrameRenderer.Listener {
+        override fun onFrameRendered(request: FrameRequest, frame: Bitmap, range: Pair<Double, Double>) {
+            if (request !== mRequest) {
+                frameCounters.dropped++
+                bitmapPool.put(frame)
+                return
+            }
+            frameCounters.rendered++
+            val key = mRequestKey
+            mRequest = null
+            mRequestKey = null
+            if (request.range == null) {
+                // Same plane, so the range holds until it changes
+                mRange = range
+            }
+            showFrame(frame, key != null, frameTransform(request.pyramid, request.level, request.clip))
+            if (key != null) {
+                frameCache.put(key, frame)
+            }
+        }
+
+        override fun onFrameFailed(request: FrameRequest, error: OutOfMemoryError) {
+            if (request !== mRequest) {
+                return
+            }
+            mRequest = null
+            mRequestKey = null
+            System.gc()
+
+            (activity as? DcmViewer)?.showMemoryDialog()
+        }
+
+        override fun onPlaneFetched(request: PlaneRequest, mat: Mat) {
+            if (request !== mPlaneRequest) {
+                // Superseded by a Mat set directly
+                return
+            }
+            mPlaneRequest = null
+            // Shown even if a later plane is waiting, so a fast scroll through slow planes still moves
+            showPlane(request, mat)
+            render(request.cacheFrame)
+            // Queued behind that frame, which still reads this plane's Mat
+            fetchPlane()
+        }
+
+        override fun onPlaneFailed(request: PlaneRequest, error: OutOfMemoryError) {
+            if (request !== mPlaneRequest) {
+                return
+            }
+            mPlaneRequest = null
+            mPendingPlane = null
+            System.gc()
+
+            (activity as? DcmViewer)?.showMemoryDialog()
+        }
+    }
+
     private val activity: Activity?
         get() {
             // Gross way of unwrapping the Activity so we can get the FragmentManager
@@ -233,14 +712,7 @@ class DcmImageView : ImageView, View.OnTouchListener {
                 }
                 2 -> {
                     // Do different things, depending on whether the fingers are moving in X or Y.
-                    if (multiDetector.isTravelY) {
-                        mContrast = mLastContrast
-                        mBrightness = (mBrightness - distanceY / 5.0).coercePercent()
-                    } else {
-                        mBrightness = mLastBrightness
-                        mContrast = (mContrast + distanceX / 10.0).coercePercent()
-                    }
-                    setImageContrast(mBrightness, mContrast)
+                    dragWindow(distanceX, distanceY, multiDetector.isTravelY)
                     return true
                 }
                 else -> return false
@@ -251,7 +723,15 @@ class DcmImageView : ImageView, View.OnTouchListener {
             // Prevent the oval from being too small:
             mScaleY = (mScaleY * scaleFactor).coercePercent().toFloat()
 
-            mRotDeg += Geometry.rad2deg(angle).toFloat()
+            val listener = rotateListener
+            if (listener != null) {
+                if (angle != 0.0) {
+                    mRotating = true
+                    listener.onRotate(Geometry.rad2deg(angle))
+                }
+            } else {
+                mRotDeg += Geometry.rad2deg(angle).toFloat()
+            }
             return true
         }
     }
@@ -14,11 +14,12 @@ import app.boyd.android.dicom.tag.TagRecyclerAdapter
 import kotlinx.android.synthetic.main.dcm_info.*
 import org.dcm4che3.data.Attributes
 import org.dcm4che3.data.Tag
-import org.dcm4che3.data.VR
 import org.dcm4che3.io.DicomInputStream
+import org.opencv.core.Mat
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
+import java.nio.ByteBuffer
 
 /**
  * DICOM InfoFragment
@@ -124,15 +125,21 @@ class DcmInfoFragment : Fragment() {
         val file = File(currFile)
         collapsingToolbar.title = file.name
         toolbar.subtitle = file.parent
+        var mat: Mat? = null
         try {
+            // Map the file if we can, so the header and pixels are read in place.
+            val mapped = FileInputStream(file).use { it.map() }
+            val stream = mapped?.let { ByteBufferInputStream(it) } ?: FileInputStream(file)
             // Read in the DicomObject
-            DicomInputStream(FileInputStream(file)).use { dis ->
-                val attributes = dis.fileMetaInformation ?: Attributes()
-                mAttributes = attributes
-                // Raw data set (DICOM data without a file format meta-header)
-                dis.readAttributes(attributes, -1, -1)
-                attributes.trimToSize()
-                attributes.internalizeStringValues(true)
+            stream.use {
+                DicomInputStream(it).use { dis ->
+                    val attributes = dis.fileMetaInformation ?: Attributes()
+                    mAttributes = attributes
+                    // Raw data set (DICOM data without a file format meta-header)
+                    val probe = dis.probeAttributes(attributes)
+                    attributes.internalizeStringValues(true)
+                    mat = checkDcmImage(dis, probe, mapped)
+                }
             }
         } catch (ex: IOException) {
             showImage(false)
@@ -148,7 +155,7 @@ class DcmInfoFragment : Fragment() {
 
         try {
             val attributes = mAttributes ?: return
-            checkDcmImage(attributes)
+            mat?.let { loadDcmImage(attributes, it) }
 
             // TODO: Add selector for info tag listing
             val activity = activity ?: return
@@ -166,23 +173,28 @@ class DcmInfoFragment : Fragment() {
         }
     }
 
-    fun checkDcmImage(attributes: Attributes) {
+    /*
+     * Decode the pixels straight from the mapping where possible, else the stream (positioned at PixelData), if they can be displayed.
+     */
+    fun checkDcmImage(dis: DicomInputStream, probe: DcmProbe, mapped: ByteBuffer?): Mat? {
         showImage(false)
-        val error = attributes.checkImage()
+        val error = probe.checkImage()
         if (error == 0) {
-            loadDcmImage(attributes)
-            return
+            try {
+                return dis.readMat(probe, mapped)
+            } catch (ex: OutOfMemoryError) {
+                System.gc()
+                // TODO: Display error?
+                return null
+            }
         }
 //        text_fileError.setText(error)
+        return null
     }
 
-    fun loadDcmImage(attributes: Attributes) {
+    fun loadDcmImage(attributes: Attributes, mat: Mat) {
         try {
-            val mat = attributes.getMat() ?: return
 //            text_fileError.text = resources.getString(R.string.err_null_pixeldata)
-
-            // Set the PixelData to null to free memory.
-            attributes.setNull(Tag.PixelData, VR.OB)
             showImage(true)
 
             // Set the image
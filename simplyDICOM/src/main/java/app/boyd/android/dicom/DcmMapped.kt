@@ -0,0 +1,92 @@
+package app.boyd.android.dicom
+
+import android.content.ContentResolver
+import android.content.Context
+import android.net.Uri
+import android.os.ParcelFileDescriptor
+import android.util.Log
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * An InputStream over a ByteBuffer (e.g. a mapped file), so dcm4che can parse a header in place.
+ * Supports mark/reset, so DicomInputStream doesn't wrap it in another buffer.
+ */
+class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+    override fun read(): Int {
+        return if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        if (!buffer.hasRemaining()) {
+            return -1
+        }
+        val count = minOf(len, buffer.remaining())
+        buffer.get(b, off, count)
+        return count
+    }
+
+    override fun skip(n: Long): Long {
+        val count = n.coerceIn(0, buffer.remaining().toLong()).toInt()
+        buffer.position(buffer.position() + count)
+        return count.toLong()
+    }
+
+    override fun available(): Int = buffer.remaining()
+
+    override fun markSupported(): Boolean = true
+
+    override fun mark(readlimit: Int) {
+        buffer.mark()
+    }
+
+    override fun reset() {
+        buffer.reset()
+    }
+}
+
+/*
+ * Map the whole file read-only.
+ * Returns null if it can't be mapped (e.g. a pipe, or no address space left), so callers can stream it instead.
+ */
+fun FileInputStream.map(): ByteBuffer? {
+    try {
+        val channel = this.channel
+        val size = channel.size()
+        if (size <= 0 || size > Int.MAX_VALUE) {
+            return null
+        }
+        // The mapping stays valid after the channel is closed.
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+    } catch (e: IOException) {
+        Log.i("cpb", "Unable to map file: ${e.message}")
+    }
+    return null
+}
+
+/*
+ * Map a file:// URI, or a content:// URI backed by a seekable file descriptor.
+ */
+fun Context.mapUri(uri: Uri): ByteBuffer? {
+    try {
+        val stream = when (uri.scheme) {
+            ContentResolver.SCHEME_FILE -> FileInputStream(uri.path ?: return null)
+            ContentResolver.SCHEME_CONTENT -> {
+                val fd = this.contentResolver.openFileDescriptor(uri, "r") ?: return null
+                ParcelFileDescriptor.AutoCloseInputStream(fd)
+            }
+            else -> return null
+        }
+        return stream.use { it.map() }
+    } catch (e: Exception) {
+        // Let the caller's stream fallback report any errors (e.g. FileNotFoundException).
+        Log.i("cpb", "Unable to open file for mapping: ${e.message}")
+    }
+    return null
+}
@@ -0,0 +1,216 @@
+package app.boyd.android.dicom
+
+import android.util.Log
+import org.dcm4che3.data.Attributes
+import org.dcm4che3.data.Tag
+import org.dcm4che3.util.StreamUtils
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/*
+ * Mat type that holds the stored pixel values without widening them:
+ * CV_8U, CV_16U or CV_16S (CV_32S for 32-bit data).
+ */
+fun Attributes.matType(): Int {
+    val signed = this.getInt(Tag.PixelRepresentation, 0) == 1
+    return when (this.getInt(Tag.BitsAllocated, 16)) {
+        8 -> if (signed) CvType.CV_16S else CvType.CV_8U
+        16 -> if (signed) CvType.CV_16S else CvType.CV_16U
+        else -> CvType.CV_32S
+    }
+}
+
+/**
+ * Reads a native (uncompressed) PixelData value into a Mat one row at a time.
+ * Only a single row is ever held on the Java heap.
+ */
+class PixelReader private constructor(val rows: Int, val cols: Int, val type: Int, bitsAllocated: Int,
+                                      bitsStored: Int, private val signed: Boolean, bigEndian: Boolean) {
+    private val bytesPerPixel = bitsAllocated / 8
+    private val order = if (bigEndian) ByteOrder.BIG_ENDIAN else ByteOrder.LITTLE_ENDIAN
+    private val rowBytes = ByteArray(cols * bytesPerPixel)
+    private val rowBuffer = ByteBuffer.wrap(rowBytes).order(order)
+    private val rowShorts = ShortArray(if (CvType.ELEM_SIZE(type) == 2) cols else 0)
+    private val rowInts = IntArray(if (type == CvType.CV_32S) cols else 0)
+    // Used to drop any bits above BitsStored (e.g. overlays)
+    private val shift = 32 - bitsStored
+
+    /** Bytes of PixelData used by one frame */
+    val frameLength: Int
+        get() = rows * rowBytes.size
+
+    fun read(input: InputStream, mat: Mat) {
+        for (row in 0 until rows) {
+            StreamUtils.readFully(input, rowBytes, 0, rowBytes.size)
+            rowBuffer.clear()
+            putRow(mat, row, rowBuffer)
+        }
+    }
+
+    /*
+     * Read straight from a buffer (e.g. a mapped file) positioned at the PixelData value.
+     * Rows are bulk-copied into the typed row arrays, skipping the byte[] staging copy.
+     */
+    fun read(buffer: ByteBuffer, mat: Mat) {
+        val src = buffer.slice().order(order)
+        for (row in 0 until rows) {
+            putRow(mat, row, src)
+        }
+    }
+
+    /*
+     * Consume one row from src and put it into the Mat.
+     */
+    private fun putRow(mat: Mat, row: Int, src: ByteBuffer) {
+        when (bytesPerPixel) {
+            1 -> {
+                if (src !== rowBuffer) {
+                    src.get(rowBytes)
+                }
+                if (type == CvType.CV_8U) {
+                    if (shift > 24) {
+                        for (i in 0 until cols) {
+                            rowBytes[i] = stored(rowBytes[i].toInt()).toByte()
+                        }
+                    }
+                    mat.put(row, 0, rowBytes)
+                } else {
+                    // Signed 8-bit is widened to CV_16S
+                    for (i in 0 until cols) {
+                        rowShorts[i] = stored(rowBytes[i].toInt()).toShort()
+                    }
+                    mat.put(row, 0, rowShorts)
+                }
+            }
+            2 -> {
+                src.asShortBuffer().get(rowShorts)
+                src.position(src.position() + cols * 2)
+                if (shift > 16) {
+                    for (i in 0 until cols) {
+                        rowShorts[i] = stored(rowShorts[i].toInt()).toShort()
+                    }
+                }
+                mat.put(row, 0, rowShorts)
+            }
+            else -> {
+                src.asIntBuffer().get(rowInts)
+                src.position(src.position() + cols * 4)
+                if (shift > 0) {
+                    for (i in 0 until cols) {
+                        rowInts[i] = stored(rowInts[i])
+                    }
+                }
+                mat.put(row, 0, rowInts)
+            }
+        }
+    }
+
+    // Shifting out the high bits makes the raw value's own sign extension irrelevant.
+    private fun stored(raw: Int): Int {
+        return if (signed) {
+            (raw shl shift) shr shift
+        } else {
+            (raw shl shift) ushr shift
+        }
+    }
+
+    companion object {
+        /*
+         * Returns null if the pixels are encapsulated or use a layout we can't display.
+         */
+        fun create(probe: DcmProbe): PixelReader? {
+            val info = probe.pixelData ?: return null
+            val attributes = probe.attributes
+            val rows = attributes.getInt(Tag.Rows, 0)
+            val cols = attributes.getInt(Tag.Columns, 0)
+            val bitsAllocated = attributes.getInt(Tag.BitsAllocated, 16)
+            val bitsStored = attributes.getInt(Tag.BitsStored, bitsAllocated).coerceIn(1, bitsAllocated)
+            val signed = attributes.getInt(Tag.PixelRepresentation, 0) == 1
+            if (rows < 1 || cols < 1 || info.isEncapsulated || bitsAllocated !in intArrayOf(8, 16, 32)) {
+                return null
+            }
+            // TODO: Color support
+            if (attributes.getInt(Tag.SamplesPerPixel, 1) != 1) {
+                Log.i("cpb", "Skipping pixels: multiple samples per pixel")
+                return null
+            }
+            if (info.length < rows.toLong() * cols * (bitsAllocated / 8)) {
+                Log.i("cpb", "Skipping pixels: PixelData is shorter than Rows x Columns")
+                return null
+            }
+            return PixelReader(rows, cols, attributes.matType(), bitsAllocated, bitsStored, signed, info.bigEndian)
+        }
+    }
+}
+
+/*
+ * Decode the PixelData value at the stream's position (see probeAttributes) into a new Mat.
+ */
+fun InputStream.readMat(probe: DcmProbe): Mat? {
+    val reader = PixelReader.create(probe) ?: return null
+    val mat = Mat(reader.rows, reader.cols, reader.type)
+    reader.read(this, mat)
+    return mat
+}
+
+/*
+ * Decode from a file's [mapped] bytes where its pixels lie in them as stored, otherwise from the stream
+ * (positioned at PixelData): deflated files are only inflated as they're read.
+ */
+fun InputStream.readMat(probe: DcmProbe, mapped: ByteBuffer?): Mat? {
+    return if (mapped != null && probe.pixelData?.hasFileOffset != false) mapped.readMat(probe) else readMat(probe)
+}
+
+/*
+ * Decode into an existing Mat (e.g. a volume slice), which must match the file's size and type.
+ */
+fun InputStream.readPixels(probe: DcmProbe, dst: Mat): Boolean {
+    val reader = PixelReader.create(probe) ?: return false
+    if (reader.rows != dst.rows() || reader.cols != dst.cols() || reader.type != dst.type()) {
+        Log.i("cpb", "Skipping pixels: destination mismatch")
+        return false
+    }
+    reader.read(this, dst)
+    return true
+}
+
+/*
+ * Decode the PixelData value of a mapped file (located by probeAttributes) into a new Mat.
+ */
+fun ByteBuffer.readMat(probe: DcmProbe): Mat? {
+    val reader = PixelReader.create(probe) ?: return null
+    val mat = Mat(reader.rows, reader.cols, reader.type)
+    reader.read(this.pixelData(probe, reader), mat)
+    return mat
+}
+
+/*
+ * Decode a mapped file's pixels into an existing Mat (see InputStream.readPixels).
+ */
+fun ByteBuffer.readPixels(probe: DcmProbe, dst: Mat): Boolean {
+    val reader = PixelReader.create(probe) ?: return false
+    if (reader.rows != dst.rows() || reader.cols != dst.cols() || reader.type != dst.type()) {
+        Log.i("cpb", "Skipping pixels: destination mismatch")
+        return false
+    }
+    reader.read(this.pixelData(probe, reader), dst)
+    return true
+}
+
+private fun ByteBuffer.pixelData(probe: DcmProbe, reader: PixelReader): ByteBuffer {
+    if (probe.pixelData?.hasFileOffset == false) {
+        throw IOException("Deflated PixelData must be read from the DicomInputStream")
+    }
+    val offset = probe.pixelData?.offset ?: 0
+    if (offset + reader.frameLength > this.limit()) {
+        throw EOFException("PixelData extends past the end of the file")
+    }
+    val pixels = this.duplicate()
+    pixels.position(offset.toInt())
+    return pixels
+}
@@ -1,6 +1,7 @@
 package app.boyd.android.dicom
 
 import android.app.Activity
+import android.content.Context
 import android.graphics.Bitmap
 import android.net.Uri
 import android.util.Log
@@ -8,7 +9,9 @@ import androidx.annotation.StringRes
 import org.dcm4che3.data.Attributes
 import org.dcm4che3.data.Tag
 import org.dcm4che3.data.UID
+import org.dcm4che3.data.VR
 import org.dcm4che3.io.DicomInputStream
+import org.dcm4che3.util.StreamUtils
 import org.opencv.android.Utils
 import org.opencv.core.Core
 import org.opencv.core.CvType
@@ -17,6 +20,7 @@ import org.opencv.imgproc.Imgproc
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
+import java.nio.ByteBuffer
 
 /**
  * DICOM helper functions
@@ -24,21 +28,48 @@ import java.io.InputStream
  * @author Christopher Boyd
  */
 
+/**
+ * Location of a file's PixelData (7FE0,0010) value, recorded while probing the header
+ * so the pixels can be read later without parsing the rest of the file.
+ */
+class PixelDataInfo(val offset: Long, val length: Int, val vr: VR, val transferSyntax: String, val bigEndian: Boolean) {
+    // Encapsulated (compressed) pixel data has an undefined length
+    val isEncapsulated: Boolean
+        get() = length == -1
+
+    // Deflated files are inflated as they're parsed, so offset is into the inflated data, not the file
+    val hasFileOffset: Boolean
+        get() = transferSyntax != UID.DeflatedExplicitVRLittleEndian
+}
+
+/**
+ * Header attributes (everything before PixelData) and the location of the pixels.
+ * mat is only set if the pixels were requested.
+ */
+class DcmProbe(val attributes: Attributes, val pixelData: PixelDataInfo?, val mat: Mat? = null)
+
 /*
  * Check if this is a DICOM image that we can display.
  * Returns resource ID for an error message or 0 if OK to display.
  * (0 is not a valid resource ID.)
  */
 @StringRes fun Attributes.checkImage(): Int {
-    try {
-        val pixels = this.getInts(Tag.PixelData)
-        if (pixels == null || pixels.isEmpty()) {
-            return R.string.err_null_pixeldata
-        }
-    } catch (ex: OutOfMemoryError) {
-        System.gc()
-        return R.string.err_mesg_oom
+    // Only check for a value; decoding the pixels isn't needed to validate the file.
+    if (!this.containsValue(Tag.PixelData)) {
+        return R.string.err_null_pixeldata
+    }
+    return this.checkTransferSyntax()
+}
+
+@StringRes fun DcmProbe.checkImage(): Int {
+    val pixelData = this.pixelData
+    if (pixelData == null || pixelData.length == 0) {
+        return R.string.err_null_pixeldata
     }
+    return attributes.checkTransferSyntax()
+}
+
+@StringRes private fun Attributes.checkTransferSyntax(): Int {
     val sopClass = this.getString(Tag.MediaStorageSOPClassUID)
     val transferSyntax = this.getString(Tag.TransferSyntaxUID)
     return when {
@@ -53,14 +84,44 @@ import java.io.InputStream
     }
 }
 
-fun InputStream.loadAttributes(): Attributes? {
+/*
+ * Read the header, stopping at the PixelData tag.
+ * The stream is left positioned at the start of the PixelData value.
+ */
+fun DicomInputStream.probeAttributes(attributes: Attributes): DcmProbe {
+    this.readAttributes(attributes, -1, Tag.PixelData)
+    attributes.trimToSize()
+    val pixelData = if (this.tag() == Tag.PixelData) {
+        PixelDataInfo(this.position, this.length(), this.vr(), this.transferSyntax, this.bigEndian())
+    } else {
+        null
+    }
+    return DcmProbe(attributes, pixelData)
+}
+
+fun InputStream.loadAttributes(readPixels: Boolean = true): DcmProbe? {
+    // Decode straight from the stream, so the pixels are only read once
+    return loadAttributes(this, readPixels) { dis, probe -> dis.readMat(probe) }
+}
+
+/*
+ * As above, for a mapped file: the header is parsed in place and the pixels are copied straight from the mapping.
+ */
+fun ByteBuffer.loadAttributes(readPixels: Boolean = true): DcmProbe? {
+    return loadAttributes(ByteBufferInputStream(this.duplicate()), readPixels) { dis, probe -> dis.readMat(probe, this) }
+}
+
+private fun loadAttributes(stream: InputStream, readPixels: Boolean,
+                           decode: (DicomInputStream, DcmProbe) -> Mat?): DcmProbe? {
     try {
         // Read in the DicomObject
-        DicomInputStream(this).use {
+        DicomInputStream(stream).use {
             val attributes = it.fileMetaInformation ?: return null
-            it.readAttributes(attributes, -1, -1)
-            attributes.trimToSize()
-            return attributes
+            val probe = it.probeAttributes(attributes)
+            if (!readPixels || probe.checkImage() != 0) {
+                return probe
+            }
+            return DcmProbe(attributes, probe.pixelData, decode(it, probe))
         }
     } catch (e: IOException) {
         // TODO Auto-generated catch block
@@ -72,14 +133,22 @@ fun InputStream.loadAttributes(): Attributes? {
     return null
 }
 
-fun Activity.checkAttributes(uri: Uri): Pair<Attributes?, String?> {
-    System.gc()
-
+/*
+ * Probe and validate a file.
+ * Only the header is read unless readPixels is set, in which case the pixels are decoded into probe.mat.
+ */
+fun Activity.checkAttributes(uri: Uri, readPixels: Boolean = false): Pair<DcmProbe?, String?> {
     // Check for multiple files
     // TODO: add error message?
-    val attributes: Attributes
+    val probe: DcmProbe
     try {
-        attributes = this.contentResolver.openInputStream(uri)?.use { it.loadAttributes() } ?: return Pair(null, "Missing DICOM file meta information.")
+        // Prefer mapping the file, which avoids copying it through stream buffers.
+        val mapped = this.mapUri(uri)
+        probe = (if (mapped != null) {
+            mapped.loadAttributes(readPixels)
+        } else {
+            this.contentResolver.openInputStream(uri)?.use { it.loadAttributes(readPixels) }
+        }) ?: return Pair(null, "Missing DICOM file meta information.")
     } catch (e: FileNotFoundException) {
         val errorMsg = if (e.message?.contains("download_unavailable") == true) {
             "Unable to download file.  Please check your connection."
@@ -94,24 +163,60 @@ fun Activity.checkAttributes(uri: Uri): Pair<Attributes?, String?> {
         return Pair(null, "Unable to load file.")
     }
 
-    val error = attributes.checkImage()
+    val error = probe.checkImage()
     if (error != 0) {
         return Pair(null, this.resources.getString(error))
     }
-    return Pair(attributes, null)
+    return Pair(probe, null)
 }
 
-fun Attributes.getMat(): Mat? {
-    // TODO: Integrate with checkImage
-    val rows = this.getInt(Tag.Rows, 1)
-    val cols = this.getInt(Tag.Columns, 1)
-    val pix = this.getInts(Tag.PixelData)
-    if (pix == null || pix.isEmpty() || cols < 1 || rows < 1) {
-        return null
+/*
+ * Decode a file's pixels straight into dst (see InputStream.readPixels).
+ */
+fun Context.readPixels(uri: Uri, dst: Mat): Boolean {
+    try {
+        this.mapUri(uri)?.let { mapped ->
+            DicomInputStream(ByteBufferInputStream(mapped.duplicate())).use {
+                val attributes = it.fileMetaInformation ?: return false
+                val probe = it.probeAttributes(attributes)
+                if (probe.pixelData?.hasFileOffset == false) {
+                    return it.readPixels(probe, dst)
+                }
+                return mapped.readPixels(probe, dst)
+            }
+        }
+        this.contentResolver.openInputStream(uri)?.use { stream ->
+            DicomInputStream(stream).use {
+                val attributes = it.fileMetaInformation ?: return false
+                return it.readPixels(it.probeAttributes(attributes), dst)
+            }
+        }
+    } catch (e: Exception) {
+        Log.e("cpb", "Error readPixels:", e)
     }
-    val mat = Mat(rows, cols, CvType.CV_32S)
-    mat.put(0, 0, pix)
-    return mat
+    return false
+}
+
+/*
+ * Decode pixels at a PixelData location found by an earlier probe, without parsing the header again.
+ * Deflated files have no such location, so they're parsed again.
+ */
+fun Context.readPixels(uri: Uri, probe: DcmProbe, dst: Mat): Boolean {
+    val pixelData = probe.pixelData ?: return false
+    if (!pixelData.hasFileOffset) {
+        return this.readPixels(uri, dst)
+    }
+    val offset = pixelData.offset
+    try {
+        this.mapUri(uri)?.let { return it.readPixels(probe, dst) }
+        this.contentResolver.openInputStream(uri)?.use {
+            StreamUtils.skipFully(it, offset)
+            return it.readPixels(probe, dst)
+        }
+    } catch (e: Exception) {
+        Log.e("cpb", "Error readPixels:", e)
+    }
+    return false
 }
 
 fun Core.MinMaxLocResult.span(): Double {
@@ -123,8 +228,12 @@ fun Mat.minMaxSpan(): Double {
     return Core.minMaxLoc(this).span()
 }
 
+/*
+ * Window any single-channel Mat (8U, 16U, 16S or 32S) down to an 8-bit display image.
+ */
 fun Mat.adjustContrast(span: Double = this.minMaxSpan(), min: Double = 0.0, invert: Boolean = false): Mat {
-    val clone = this.clone()
+    // convertTo writes a new 8-bit Mat, so there's no need to clone the (wider) source first.
+    val contrast = Mat()
 
     var gain = 255.0 / span
     var bias = gain * -min
@@ -133,8 +242,8 @@ fun Mat.adjustContrast(span: Double = this.minMaxSpan(), min: Double = 0.0, inve
         bias = 255.0 - bias
     }
     // Core.normalize(mat, temp, ImMin, ImMax, Core.NORM_MINMAX)
-    clone.convertTo(clone, CvType.CV_8UC1, gain, bias)
-    return clone
+    this.convertTo(contrast, CvType.CV_8UC1, gain, bias)
+    return contrast
 }
 
 fun Mat.toBitmap(colormap: Int = Imgproc.COLORMAP_BONE): Bitmap {
@@ -8,5 +8,9 @@ package app.boyd.android.dicom
 
 /** Axis Orientation  */
 enum class Axis {
-    TRANSVERSE, CORONAL, SAGITTAL
+    TRANSVERSE, CORONAL, SAGITTAL,
+    /** Resampled at an arbitrary angle (see ObliqueSeries) */
+    OBLIQUE,
+    /** Ray cast in 3D (see VolumeView); has no planes */
+    VOLUME
 }
\ No newline at end of file
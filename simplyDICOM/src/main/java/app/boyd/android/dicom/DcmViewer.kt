@@ -2,6 +2,7 @@ package app.boyd.android.dicom
 
 import android.app.Activity
 import android.app.AlertDialog
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.Intent
 import android.os.AsyncTask
@@ -17,12 +18,22 @@ import android.widget.SeekBar
 import android.widget.TextView
 import androidx.annotation.StringRes
 import app.boyd.android.dicom.tasks.*
+import app.boyd.android.dicom.volume.BrickedVolume
+import app.boyd.android.dicom.volume.DcmSeries
+import app.boyd.android.dicom.volume.DcmVolume
+import app.boyd.android.dicom.volume.LoadStrategy
+import app.boyd.android.dicom.volume.ObliqueSeries
+import app.boyd.android.dicom.volume.SeriesStats
+import app.boyd.android.dicom.volume.SlabMode
+import app.boyd.android.dicom.volume.SlabSeries
+import app.boyd.android.dicom.volume.SliceCache
+import app.boyd.android.dicom.volume.nativeHeadroom
+import app.boyd.android.dicom.volume.planLoad
 import app.boyd.android.shared.image.ColormapArrayAdapter
 import com.google.android.material.snackbar.Snackbar
 import kotlinx.android.synthetic.main.dcm_viewer.*
+import org.dcm4che3.data.Tag
 import org.opencv.android.OpenCVLoader
-import org.opencv.core.Core
-import org.opencv.core.Mat
 
 /**
  * DICOMViewer Class
@@ -31,8 +42,24 @@ import org.opencv.core.Mat
  */
 class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         TextView.OnEditorActionListener, SeekBar.OnSeekBarChangeListener, AdapterView.OnItemSelectedListener {
-    private var mMatList: List<Mat>? = null
+    private var mSeries: DcmSeries? = null
+    // The same series resampled at any angle, if it's all in one volume
+    private var mOblique: ObliqueSeries? = null
+    // The same series projected through a slab around each plane, if it's quick to reslice
+    private var mSlab: SlabSeries? = null
+    // The series in bricks for the 3D view, built the first time it's shown
+    private var mBricks: BrickedVolume? = null
+    private var mBricksTask: BricksTask? = null
+    private var mStats: SeriesStats? = null
+    // Slices of series that aren't fully in memory
+    private lateinit var sliceCache: SliceCache
+    // The last transverse slice shown, to tell which way the user is scrolling
+    private var lastInstance = -1
     private var zList: List<Int>? = null
+    // Contiguous transverse slices decoded so far, or null once the whole series is loaded
+    private var loadedRange: IntRange? = null
+    // Set while the seek bar is rescaled, which moves its progress without changing the slice
+    private var rescalingSeekBar = false
     private var mTask: AsyncTask<*, *, *>? = null
 
     private var _axis = Axis.TRANSVERSE
@@ -44,6 +71,17 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
 
             val axes = Axis.values()
             val axis = value.coerceIn(0, axes.size - 1)
+            if (axes[axis] == Axis.OBLIQUE && mOblique == null) {
+                showSnackbar(getString(R.string.oblique_unavailable))
+                spinnerAxis.setSelection(currentAxis)
+                return
+            }
+            // Ray casting needs the same: every voxel in one volume
+            if (axes[axis] == Axis.VOLUME && mOblique == null) {
+                showSnackbar(getString(R.string.volume_unavailable))
+                spinnerAxis.setSelection(currentAxis)
+                return
+            }
             _axis = axes[axis]
 
             if (spinnerAxis.selectedItemPosition != axis) {
@@ -53,40 +91,54 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
             updateAxis()
         }
 
-    private var _instance = intArrayOf(0, 0, 0)
+    private var _instance = intArrayOf(0, 0, 0, 0, 0)
     private var currentInstance: Int
         get() = _instance[currentAxis]
         set(value) {
-            _instance[currentAxis] = value.coerceIn(0, currentMax)
+            _instance[currentAxis] = value.coerceIn(currentMin, currentMax)
         }
 
-    private var _maxIndex = intArrayOf(0, 0, 0)
+    private var _maxIndex = intArrayOf(0, 0, 0, 0, 0)
     private val currentMax: Int
-        get() = _maxIndex[currentAxis]
-
-    private var _scaleSpacing = doubleArrayOf(1.0, 1.0, 1.0)
+        get() = loadedRange?.takeIf { _axis == Axis.TRANSVERSE }?.last ?: _maxIndex[currentAxis]
+    // The seek bar starts at 0, so it is offset by this to cover only the loaded slices.
+    private val currentMin: Int
+        get() = loadedRange?.takeIf { _axis == Axis.TRANSVERSE }?.first ?: 0
+
+    private var _scaleSpacing = doubleArrayOf(1.0, 1.0, 1.0, 1.0, 1.0)
+    // Voxel size in mm along x, y and z
+    private var _spacing = doubleArrayOf(1.0, 1.0, 1.0)
     private val currentScale: Double
         get() = _scaleSpacing[currentAxis]
 
     public override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.dcm_viewer)
+        sliceCache = SliceCache.create(this)
 
         btn_invert.setOnCheckedChangeListener(this)
+        btn_series_window.setOnCheckedChangeListener(this)
         spinnerColormap.adapter = ColormapArrayAdapter(this,
                 R.layout.support_simple_spinner_dropdown_item, resources.getStringArray(R.array.colormaps_array))
         spinnerColormap.onItemSelectedListener = this
         input_idx.setOnEditorActionListener(this)
 
         spinnerAxis.onItemSelectedListener = this
+        spinnerSlab.onItemSelectedListener = this
+        spinnerSlabThickness.onItemSelectedListener = this
+        enableSlab(false)
         // Set the seek bar change index listener
         seek_idx.setOnSeekBarChangeListener(this)
 
         imageView.setOnContrastChangedListener(object: DcmImageView.OnContrastChangedListener {
             override fun onContrastChanged(brightness: Double, contrast: Double, colormap: Int, invertCmap: Boolean) {
                 contrastView.setImageContrast(brightness, contrast, colormap, invertCmap)
+                if (_axis == Axis.VOLUME) {
+                    updateVolumeWindow()
+                }
             }
         })
+        volumeView.windowView = imageView
 
         // TODO: Reload state?
 
@@ -158,10 +210,30 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
                 or View.SYSTEM_UI_FLAG_IMMERSIVE_STICKY)
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        // The copies only speed up reslicing, so they're the first thing to go
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mSeries?.dropAxisCopies()
+            dropBricks()
+        }
+    }
+
+    override fun onLowMemory() {
+        super.onLowMemory()
+        mSeries?.dropAxisCopies()
+        dropBricks()
+    }
+
     override fun onDestroy() {
         super.onDestroy()
         cancelLoadTask(true)
-        mMatList = null
+        mSeries?.dropAxisCopies()
+        mSeries = null
+        mOblique = null
+        mSlab = null
+        mBricks = null
+        sliceCache.shutdown()
 
         // Free the drawable callback
         imageView?.drawable?.callback = null
@@ -172,31 +244,18 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         try {
             // Set the current instance if specified by user
             // This prevents resetting the view if setMax changes the progress
-            if (fromUser) currentInstance = progress
-            val matList = mMatList
-            if (matList != null) {
-                val newMat = when (_axis) {
-                    Axis.TRANSVERSE -> matList[currentInstance]
-                    Axis.CORONAL -> {
-                        val listY = ArrayList<Mat>()
-                        for (z in matList) {
-                            listY.add(z.row(currentInstance))
-                        }
-                        val mat = Mat()
-                        Core.vconcat(listY, mat)
-                        mat
-                    }
-                    Axis.SAGITTAL -> {
-                        val listX = ArrayList<Mat>()
-                        for (z in matList) {
-                            listX.add(z.col(currentInstance))
-                        }
-                        val mat = Mat()
-                        Core.hconcat(listX, mat)
-                        mat
+            if (fromUser) currentInstance = currentMin + progress
+            val series = mSeries
+            if (series != null && (fromUser || !rescalingSeekBar)) {
+                showPlane(series)
+                if (_axis == Axis.TRANSVERSE) {
+                    // Covers the seek bar as well as the next/previous buttons
+                    val direction = Integer.signum(currentInstance - lastInstance)
+                    if (lastInstance >= 0 && direction != 0) {
+                        series.prefetch(currentInstance, direction)
                     }
+                    lastInstance = currentInstance
                 }
-                imageView.mat = newMat
             }
         } catch (ex: OutOfMemoryError) {
             System.gc()
@@ -211,19 +270,20 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
 
     private fun updateNavButtons() {
         // Set the visibility of the previous button
-        btn_prev_idx.visibility = if (currentInstance == 0) View.INVISIBLE else View.VISIBLE
+        btn_prev_idx.visibility = if (currentInstance == currentMin) View.INVISIBLE else View.VISIBLE
         btn_next_idx.visibility = if (currentInstance == currentMax) View.INVISIBLE else View.VISIBLE
     }
 
     // Needed to implement the SeekBar.OnSeekBarChangeListener
     override fun onStartTrackingTouch(seekBar: SeekBar) {
         clearFocus()
+        // Counted per drag, and logged when it ends
+        imageView.frameCounters.reset()
     }
 
     // Needed to implement the SeekBar.OnSeekBarChangeListener
     override fun onStopTrackingTouch(seekBar: SeekBar) {
-        // TODO: necessary?
-        System.gc()
+        Log.i("cpb", "Frames: ${imageView.frameCounters}")
     }
 
     /**
@@ -235,7 +295,7 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         clearFocus()
         currentInstance--
         // Changing the progress bar will set the image
-        seek_idx.progress = currentInstance
+        seek_idx.progress = currentInstance - currentMin
     }
 
     /**
@@ -247,7 +307,7 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         clearFocus()
         currentInstance++
         // Changing the progress bar will set the image
-        seek_idx.progress = currentInstance
+        seek_idx.progress = currentInstance - currentMin
     }
 
     fun updateProgress(progress: Pair<Int, Int>) {
@@ -264,6 +324,8 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
 
     fun loadResult(result: IntentLoadTaskResult) {
         val mat = result.mat
+        val attributes = result.attributes
+        imageView.setRescale(attributes.getDouble(Tag.RescaleSlope, 1.0), attributes.getDouble(Tag.RescaleIntercept, 0.0))
         imageView.mat = mat
 
         // Eliminate the loading symbol
@@ -277,25 +339,222 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
             return
         }
 
-        mTask = UrisLoadTask(this).execute(UrisLoadTaskInput(result, uris))
+        // Size the series before decoding it, and degrade rather than run out of memory.
+        val plan = planLoad(result.attributes, uris.size + 1)
+        when (plan.strategy) {
+            LoadStrategy.COMPRESSED -> showSnackbar(getString(R.string.load_compressed))
+            LoadStrategy.DOWNSAMPLED -> showSnackbar(getString(R.string.load_downsampled))
+            LoadStrategy.PAGED -> showSnackbar(getString(R.string.load_paged))
+        }
+        mTask = UrisLoadTask(this).execute(UrisLoadTaskInput(result, uris, plan, sliceCache))
     }
 
     fun setSpacing(spacing: DoubleArray, spacingZ: Double = 1.0) {
-        _scaleSpacing = doubleArrayOf(spacing[1] / spacing[0], spacing[1] / spacingZ, spacingZ / spacing[0])
+        // Oblique pixels are square
+        _scaleSpacing = doubleArrayOf(spacing[1] / spacing[0], spacing[1] / spacingZ, spacingZ / spacing[0], 1.0, 1.0)
+        _spacing = doubleArrayOf(spacing[1], spacing[0], if (spacingZ > 0.0) spacingZ else 1.0)
+    }
+
+    // While browsing oblique planes, the rotation gesture turns the plane rather than the image
+    private val obliqueRotation = object : DcmImageView.OnRotateListener {
+        override fun onRotate(degrees: Double) {
+            val oblique = mOblique ?: return
+            oblique.angle = (oblique.angle + degrees) % 360.0
+            oblique.preview = true
+            showOblique()
+        }
+
+        override fun onRotateEnd() {
+            val oblique = mOblique ?: return
+            oblique.preview = false
+            showOblique()
+        }
+    }
+
+    /*
+     * Show the current plane. The view fetches it once per display frame, however fast the seek bar moves.
+     */
+    private fun showPlane(series: DcmSeries) {
+        val slab = mSlab?.takeIf { it.mode != SlabMode.NONE && loadedRange == null }
+        when {
+            // Not made of planes; updateAxis shows it
+            _axis == Axis.VOLUME -> return
+            _axis == Axis.OBLIQUE -> showOblique()
+            // Projections are windowed against the whole series, as no single slice's range fits them
+            slab != null -> imageView.setPlane(slab, _axis, currentInstance, mStats?.volume)
+            // Transverse slices have stats from when they were decoded
+            _axis == Axis.TRANSVERSE -> imageView.setPlane(series, _axis, currentInstance, mStats?.slice(currentInstance))
+            else -> imageView.setPlane(series, _axis, currentInstance)
+        }
+    }
+
+    private fun enableSlab(enabled: Boolean) {
+        spinnerSlab.isEnabled = enabled
+        spinnerSlabThickness.isEnabled = enabled
+    }
+
+    // Slab settings from the spinners
+    private fun applySlab(slab: SlabSeries) {
+        slab.mode = SlabMode.values()[spinnerSlab.selectedItemPosition.coerceAtLeast(0)]
+        val thickness = resources.getIntArray(R.array.slab_thickness_mm)
+        slab.thickness = thickness[spinnerSlabThickness.selectedItemPosition.coerceIn(0, thickness.size - 1)].toDouble()
+    }
+
+    /*
+     * Redraw after the slab changes; frames cached for the old slab no longer apply.
+     */
+    private fun updateSlab() {
+        val slab = mSlab ?: return
+        applySlab(slab)
+        imageView.clearFrames()
+        mSeries?.let { showPlane(it) }
+    }
+
+    private fun showOblique() {
+        val oblique = mOblique ?: return
+        // Windowed against the whole series, so the contrast holds as the plane turns
+        imageView.setPlane(oblique, Axis.OBLIQUE, currentInstance, mStats?.volume)
+    }
+
+    /*
+     * Show the 3D view, bricking the series first if it hasn't been yet.
+     */
+    private fun showVolume() {
+        if (mBricks != null) {
+            updateVolumeWindow()
+            return
+        }
+        val volume = mSeries as? DcmVolume ?: return
+        if (mBricksTask != null) {
+            return
+        }
+        if (BrickedVolume.byteCount(volume) > nativeHeadroom() * BRICKS_BUDGET) {
+            showSnackbar(getString(R.string.volume_no_memory))
+            currentAxis = Axis.TRANSVERSE.ordinal
+            return
+        }
+        progressContainer.visibility = View.VISIBLE
+        mBricksTask = BricksTask(this, volume).also { it.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR) }
+    }
+
+    fun bricksResult(volume: DcmVolume, bricks: BrickedVolume?) {
+        mBricksTask = null
+        hideLoading()
+        if (volume !== mSeries) {
+            return
+        }
+        if (bricks == null) {
+            showSnackbar(getString(R.string.volume_no_memory))
+            // Back to a view that can be shown
+            currentAxis = Axis.TRANSVERSE.ordinal
+            return
+        }
+        mBricks = bricks
+        volumeView.setVolume(bricks, _spacing)
+        if (_axis == Axis.VOLUME) {
+            updateVolumeWindow()
+        }
+    }
+
+    // The 3D view is windowed over the whole volume, with the same window and colormap as the planes
+    private fun updateVolumeWindow() {
+        val bricks = mBricks ?: return
+        volumeView.setWindow(imageView.windowParams(Pair(bricks.min.toDouble(), bricks.max.toDouble())))
+    }
+
+    /*
+     * Free the bricks, unless the 3D view is showing them; they're rebuilt if it's shown again.
+     */
+    private fun dropBricks() {
+        if (_axis == Axis.VOLUME) {
+            return
+        }
+        mBricks = null
+        volumeView.setVolume(null, _spacing)
+    }
+
+    /*
+     * Show a series that is still loading. Only the transverse slices in [loaded] can be browsed,
+     * until updateLoadedRange grows it and loadResult completes it.
+     */
+    fun showSeries(result: UrisLoadTaskResult, loaded: IntRange) {
+        loadedRange = loaded
+        // Other planes and slabs need every slice
+        spinnerAxis.isEnabled = false
+        enableSlab(false)
+        progressContainer2.visibility = View.INVISIBLE
+        showResult(result)
+    }
+
+    fun updateLoadedRange(loaded: IntRange) {
+        if (mSeries == null || loadedRange == null) {
+            return
+        }
+        loadedRange = loaded
+        rescalingSeekBar = true
+        updateAxis()
+        rescalingSeekBar = false
     }
 
     fun loadResult(result: UrisLoadTaskResult?) {
         progressContainer2.visibility = View.INVISIBLE
-        val mats = result?.matList ?: return
-        if (mats.isNullOrEmpty()) {
+        val wasLoading = loadedRange != null
+        loadedRange = null
+        result ?: return
+        val failed = result.failed.count { it }
+        if (failed > 0) {
+            showSnackbar(getString(R.string.load_failed_slices, failed))
+        }
+        spinnerAxis.isEnabled = result.series.resliceable
+        enableSlab(mSlab != null)
+        if (wasLoading && mSeries === result.series) {
+            // Already showing the series, so just release the seek bar.
+            rescalingSeekBar = true
+            updateAxis()
+            rescalingSeekBar = false
+        } else {
+            showResult(result)
+        }
+        // Only known once every slice is in
+        imageView.seriesStats = result.stats.volume
+        mOblique?.background = result.stats.volume?.min ?: 0.0
+        if (result.series.resliceable) {
+            AxisCopiesTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, result.series)
+        }
+    }
+
+    private fun showResult(result: UrisLoadTaskResult) {
+        val series = result.series
+        if (series.depth < 1) {
             return
         }
 
-        mMatList = mats
-        val rows = mats[0].rows()
-        val cols = mats[0].cols()
-        _maxIndex = intArrayOf(mats.size - 1, rows - 1, cols - 1)
-        if (mats.size <= 1) {
+        if (mSeries !== series) {
+            mSeries?.dropAxisCopies()
+            // Slices of the previous load can't be shown again
+            sliceCache.clear()
+            // Bricks of the previous series would be dropped on arrival anyway
+            mBricksTask?.let {
+                it.cancel(true)
+                hideLoading()
+            }
+            mBricksTask = null
+            mBricks = null
+            volumeView.setVolume(null, _spacing)
+        }
+        mSeries = series
+        mStats = result.stats
+        imageView.seriesStats = null
+        lastInstance = -1
+        // Frames rendered from the previous series
+        imageView.clearFrames()
+        val rows = series.rows
+        val cols = series.cols
+        mOblique = (series as? DcmVolume)?.takeIf { it.depth > 1 && rows > 1 && cols > 1 }?.let { ObliqueSeries(it, _spacing) }
+        val obliqueSize = mOblique?.size(Axis.OBLIQUE) ?: 1
+        mSlab = series.takeIf { it.resliceable }?.let { SlabSeries(it, _spacing).apply { applySlab(this) } }
+        _maxIndex = intArrayOf(series.depth - 1, rows - 1, cols - 1, obliqueSize - 1, 0)
+        if (series.depth <= 1) {
             return
         }
 
@@ -309,8 +568,9 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         val zs = result.zList
         val z = zs.indexOf(instanceNum).coerceAtLeast(0)
         zList = zs
-        _instance = intArrayOf(z, rows / 2, cols / 2)
+        _instance = intArrayOf(z, rows / 2, cols / 2, obliqueSize / 2, 0)
         currentAxis = 0
+        updateAxis()
     }
 
     /**
@@ -345,13 +605,22 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
 
     private fun updateAxis() {
         imageView.scaleY2X = currentScale
+        imageView.rotateListener = if (_axis == Axis.OBLIQUE) obliqueRotation else null
+        val volume = _axis == Axis.VOLUME
+        imageView.visibility = if (volume) View.INVISIBLE else View.VISIBLE
+        // Still windowed by the 3D view's drags, but nothing it draws would be seen
+        imageView.paused = volume
+        volumeView.visibility = if (volume) View.VISIBLE else View.GONE
+        if (volume) {
+            showVolume()
+        }
 
-        if (mMatList == null) {
+        if (mSeries == null) {
             navigationToolbar.visibility = View.INVISIBLE
             return
         }
-        seek_idx.max = currentMax
-        seek_idx.progress = currentInstance
+        seek_idx.max = currentMax - currentMin
+        seek_idx.progress = currentInstance - currentMin
 
         updateNavButtons()
     }
@@ -375,6 +644,9 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
             R.id.spinnerAxis -> {
                 currentAxis = position
             }
+            R.id.spinnerSlab, R.id.spinnerSlabThickness -> {
+                updateSlab()
+            }
         }
     }
 
@@ -400,7 +672,7 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         currentInstance = userInput
         view.text = (currentInstance + 1).toString()
         // Changing the progress bar will set the image
-        seek_idx.progress = currentInstance
+        seek_idx.progress = currentInstance - currentMin
         // Hide the keyboard (clearing focus keeps it open)
         hideKeyboard(view)
         // Clear focus from EditText
@@ -417,6 +689,9 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
         clearFocus()
         // Check which toggle button was changed
         when (buttonView?.id) {
+            R.id.btn_series_window -> {
+                imageView.seriesWindow = isChecked
+            }
             R.id.btn_invert -> {
                 (spinnerColormap.adapter as ColormapArrayAdapter).invertColormap = isChecked
                 imageView.invertColormap = isChecked
@@ -436,6 +711,9 @@ class DcmViewer : Activity(), CompoundButton.OnCheckedChangeListener,
     }
 
     companion object {
+        // Share of free native memory the 3D view's bricks may take
+        private const val BRICKS_BUDGET = 0.5
+
         // Static initialization of OpenCV
         init {
             if (!OpenCVLoader.initDebug()) {
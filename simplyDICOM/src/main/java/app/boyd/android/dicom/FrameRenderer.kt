@@ -0,0 +1,190 @@
+package app.boyd.android.dicom
+
+import android.graphics.Bitmap
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.Process
+import app.boyd.android.dicom.volume.DcmSeries
+import app.boyd.android.dicom.volume.SliceStats
+import app.boyd.android.shared.image.BitmapPool
+import org.opencv.core.Core
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.abs
+
+/**
+ * A frame to render: the stored pixels plus the display settings they're windowed with.
+ * [range] is the stored value range the window is relative to; if null, it's found from the pixels.
+ * If [pyramid] is set, its [level] is rendered instead of the Mat itself.
+ * If [clip] is set, only that region (in the rendered level's pixels) is rendered.
+ */
+class FrameRequest(val mat: Mat, val range: Pair<Double, Double>?, val slope: Double, val intercept: Double,
+                   val brightness: Double, val contrast: Double, val invert: Boolean, val colormap: Int,
+                   val clip: Rect? = null, val pyramid: ImagePyramid? = null, val level: Int = 0) {
+    fun params(range: Pair<Double, Double>): LutParams {
+        return windowParams(range, slope, intercept, brightness, contrast, invert, colormap)
+    }
+}
+
+/**
+ * A series plane to fetch before it can be rendered, since fetching can mean decoding, inflating,
+ * a strided copy or resampling. [stats] and [cacheFrame] are passed back with it for its first frame.
+ */
+class PlaneRequest(val series: DcmSeries, val axis: Axis, val index: Int, val stats: SliceStats?,
+                   val cacheFrame: Boolean)
+
+/*
+ * Window in modality units (a negative slope flips the range), for brightness and contrast
+ * as percentages of the stored value [range].
+ */
+fun windowParams(range: Pair<Double, Double>, slope: Double, intercept: Double, brightness: Double,
+                 contrast: Double, invert: Boolean, colormap: Int): LutParams {
+    val (min, max) = range
+    val modalityMin = minOf(min * slope + intercept, max * slope + intercept)
+    val diff = (max - min) * abs(slope)
+    val imWidth = (1.0 - contrast / 100.0) * diff
+    //val imMax = imWidth + (diff - imWidth) * (1.0 - (brightness / 100.0)) + modalityMin
+    val imMin = (diff - imWidth) * (1.0 - brightness / 100.0) + modalityMin
+    return LutParams(slope, intercept, imMin, imWidth, invert, colormap)
+}
+
+/**
+ * Fetches planes and renders frames on a dedicated thread, so pixel work never blocks the UI thread.
+ *
+ * Only the latest request of each kind is kept: anything submitted while the thread is busy replaces
+ * whatever was waiting, so it's at most one fetch or render behind however fast requests arrive.
+ * Series are only read from this thread, and a waiting render runs before a waiting fetch, so a plane Mat
+ * the series reuses stays valid for every frame asked of it before the next fetch.
+ * Results are delivered on the main thread.
+ */
+class FrameRenderer(private val pool: BitmapPool, private val listener: Listener) {
+    interface Listener {
+        fun onFrameRendered(request: FrameRequest, frame: Bitmap, range: Pair<Double, Double>)
+        fun onFrameFailed(request: FrameRequest, error: OutOfMemoryError)
+        fun onPlaneFetched(request: PlaneRequest, mat: Mat)
+        fun onPlaneFailed(request: PlaneRequest, error: OutOfMemoryError)
+    }
+
+    private val pending = AtomicReference<FrameRequest?>()
+    private val pendingPlane = AtomicReference<PlaneRequest?>()
+    private val main = Handler(Looper.getMainLooper())
+    private var worker: Worker? = null
+
+    /*
+     * Render [request] once the current frame (if any) is done, dropping any request still waiting.
+     * Returns false if a waiting request was dropped.
+     */
+    fun submit(request: FrameRequest): Boolean {
+        if (pending.getAndSet(request) != null) {
+            return false
+        }
+        post()
+        return true
+    }
+
+    /*
+     * Fetch [request]'s plane once the thread is free, dropping any fetch still waiting.
+     */
+    fun fetch(request: PlaneRequest) {
+        if (pendingPlane.getAndSet(request) != null) {
+            return
+        }
+        post()
+    }
+
+    private fun post() {
+        val worker = worker ?: Worker().also { worker = it }
+        worker.handler.post(worker)
+    }
+
+    /*
+     * Drop the waiting requests. A fetch or frame already in progress still completes.
+     */
+    fun cancel() {
+        pending.set(null)
+        pendingPlane.set(null)
+    }
+
+    /*
+     * Stop the thread once it's idle; the next submit starts a new one.
+     */
+    fun quit() {
+        cancel()
+        worker?.thread?.quitSafely()
+        worker = null
+    }
+
+    // Each thread has its own tables, so a quitting thread can't race its replacement
+    private inner class Worker : Runnable {
+        val thread = HandlerThread("FrameRenderer", Process.THREAD_PRIORITY_DISPLAY).apply { start() }
+        val handler = Handler(thread.looper)
+        private val lutRenderer = LutRenderer()
+        // Levels are only built here, so they're freed here too once the view moves on
+        private var lastPyramid: ImagePyramid? = null
+
+        override fun run() {
+            pending.getAndSet(null)?.let { render(it) }
+            pendingPlane.getAndSet(null)?.let { fetch(it) }
+        }
+
+        private fun fetch(request: PlaneRequest) {
+            try {
+                val mat = request.series.plane(request.axis, request.index)
+                main.post { listener.onPlaneFetched(request, mat) }
+            } catch (ex: OutOfMemoryError) {
+                main.post { listener.onPlaneFailed(request, ex) }
+            }
+        }
+
+        private fun render(request: FrameRequest) {
+            try {
+                val mat = request.mat
+                val range = request.range ?: Core.minMaxLoc(mat).let { Pair(it.minVal, it.maxVal) }
+                if (request.pyramid !== lastPyramid) {
+                    lastPyramid?.release()
+                    lastPyramid = request.pyramid
+                }
+                val level = request.pyramid?.level(request.level) ?: mat
+                // One pass from stored values to ARGB, straight into the bitmap
+                val src = request.clip?.let { level.submat(it) } ?: level
+                val frame = pool.get(src.cols(), src.rows())
+                lutRenderer.render(src, request.params(range), frame)
+                main.post { listener.onFrameRendered(request, frame, range) }
+            } catch (ex: OutOfMemoryError) {
+                main.post { listener.onFrameFailed(request, ex) }
+            }
+        }
+    }
+}
+
+/**
+ * Redraw bookkeeping for a view, to see how much render work gestures actually cause.
+ * Only touched on the main thread.
+ */
+class FrameCounters {
+    /** Redraws asked for, e.g. one per touch event or seek bar step */
+    var requested = 0L
+        internal set
+    /** Frames rendered and shown */
+    var rendered = 0L
+        internal set
+    /** Frames shown straight from the frame cache */
+    var cached = 0L
+        internal set
+    /** Requests that never reached the screen: merged into the same display frame, or superseded while rendering */
+    var dropped = 0L
+        internal set
+
+    fun reset() {
+        requested = 0
+        rendered = 0
+        cached = 0
+        dropped = 0
+    }
+
+    override fun toString(): String {
+        return "requested: $requested rendered: $rendered cached: $cached dropped: $dropped"
+    }
+}
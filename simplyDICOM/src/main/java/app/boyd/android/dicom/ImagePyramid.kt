@@ -0,0 +1,92 @@
+package app.boyd.android.dicom
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Downsampled copies of a Mat, each half the size of the last, built on first use.
+ * Levels are area-averaged in the Mat's own depth, so they window exactly like the original.
+ *
+ * Level 0 is the Mat itself. Levels stop once the longer side would drop below [MIN_SIZE].
+ */
+class ImagePyramid(val base: Mat) {
+    private val levels = ArrayList<Mat>().apply { add(base) }
+
+    /** Number of levels, including the base */
+    val depth: Int = run {
+        var depth = 1
+        while (maxOf(cols(depth), rows(depth)) >= MIN_SIZE) {
+            depth++
+        }
+        depth
+    }
+
+    fun cols(level: Int): Int = halve(base.cols(), level)
+
+    fun rows(level: Int): Int = halve(base.rows(), level)
+
+    /** Base pixels per pixel of [level], across */
+    fun scaleX(level: Int): Float = base.cols().toFloat() / cols(level)
+
+    /** Base pixels per pixel of [level], down */
+    fun scaleY(level: Int): Float = base.rows().toFloat() / rows(level)
+
+    /*
+     * Coarsest level that still has a pixel for every screen pixel at [scale] (screen pixels per base pixel).
+     */
+    fun levelFor(scale: Double): Int {
+        var level = 0
+        var levelScale = scale
+        while (level + 1 < depth && levelScale * 2.0 <= 1.0) {
+            levelScale *= 2.0
+            level++
+        }
+        return level
+    }
+
+    @Synchronized
+    fun level(level: Int): Mat {
+        while (levels.size <= level) {
+            val n = levels.size
+            val src = levels[n - 1]
+            val dst = Mat(rows(n), cols(n), base.type())
+            val size = Size(cols(n).toDouble(), rows(n).toDouble())
+            if (base.type() == CvType.CV_32S) {
+                // INTER_AREA doesn't take 32-bit integers, so average in doubles
+                val wide = Mat()
+                src.convertTo(wide, CvType.CV_64F)
+                Imgproc.resize(wide, wide, size, 0.0, 0.0, Imgproc.INTER_AREA)
+                wide.convertTo(dst, CvType.CV_32S)
+                wide.release()
+            } else {
+                Imgproc.resize(src, dst, size, 0.0, 0.0, Imgproc.INTER_AREA)
+            }
+            levels.add(dst)
+        }
+        return levels[level]
+    }
+
+    /*
+     * Free the downsampled levels (they're rebuilt if used again). The base is left alone.
+     */
+    @Synchronized
+    fun release() {
+        while (levels.size > 1) {
+            levels.removeAt(levels.size - 1).release()
+        }
+    }
+
+    companion object {
+        const val MIN_SIZE = 256
+
+        private fun halve(size: Int, level: Int): Int {
+            var halved = size
+            repeat(level) {
+                halved = (halved + 1) / 2
+            }
+            return halved
+        }
+    }
+}
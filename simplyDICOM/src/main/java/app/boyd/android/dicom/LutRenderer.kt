@@ -0,0 +1,165 @@
+package app.boyd.android.dicom
+
+import android.graphics.Bitmap
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.imgproc.Imgproc
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.roundToInt
+
+/**
+ * Everything that maps a stored pixel value to a displayed color.
+ * The window (low, width) is in modality units, i.e. after slope and intercept.
+ */
+data class LutParams(val slope: Double, val intercept: Double, val low: Double, val width: Double,
+                     val invert: Boolean, val colormap: Int)
+
+/**
+ * Renders a single-channel Mat straight into an ARGB bitmap in one pass, through a lookup table that
+ * folds the modality rescale, window, inversion and colormap together.
+ *
+ * 8 and 16-bit pixels index the table directly; it is only rebuilt when the parameters or pixel type change.
+ * 32-bit pixels are too wide for a table, so they're windowed per pixel into the same palette.
+ *
+ * The image is split into bands of rows, rendered on all cores (see forEachBand). Each thread keeps
+ * its own row buffers, so nothing is allocated per frame unless the image size changes.
+ */
+class LutRenderer {
+    private var lut = IntArray(0)
+    private var lutType = -1
+    private var lutParams: LutParams? = null
+
+    // The whole frame, filled in by the bands and handed to the bitmap at once
+    private var framePixels = IntArray(0)
+    private val rowBuffers = object : ThreadLocal<RowBuffers>() {
+        override fun initialValue() = RowBuffers()
+    }
+
+    fun render(mat: Mat, params: LutParams, dst: Bitmap) {
+        val pixels = renderPixels(mat, params)
+        dst.setPixels(pixels, 0, mat.cols(), 0, 0, mat.cols(), mat.rows())
+    }
+
+    /*
+     * ARGB for every pixel, row-major with a stride of mat.cols(). The array may be longer than needed.
+     */
+    internal fun renderPixels(mat: Mat, params: LutParams): IntArray {
+        prepare(mat, params)
+        val size = mat.rows() * mat.cols()
+        if (framePixels.size < size) {
+            framePixels = IntArray(size)
+        }
+        forEachBand(mat.rows(), MIN_BAND_ROWS) { first, last ->
+            rowBuffers.get()!!.render(mat, first, last, params)
+        }
+        return framePixels
+    }
+
+    internal fun prepare(mat: Mat, params: LutParams) {
+        val type = mat.type()
+        if (type == lutType && params == lutParams) {
+            return
+        }
+        val palette = palette(params.colormap)
+        lut = when (type) {
+            CvType.CV_8U -> IntArray(256) { palette[index(it, params)] }
+            CvType.CV_16U -> IntArray(65536) { palette[index(it, params)] }
+            // Offset so the most negative value is entry 0
+            CvType.CV_16S -> IntArray(65536) { palette[index(it - 32768, params)] }
+            else -> IntArray(0)
+        }
+        lutType = type
+        lutParams = params
+    }
+
+    /*
+     * One thread's row buffers, to read bands of rows through.
+     */
+    private inner class RowBuffers {
+        private var rowBytes = ByteArray(0)
+        private var rowShorts = ShortArray(0)
+        private var rowInts = IntArray(0)
+
+        // Rows [first, last) into framePixels
+        fun render(mat: Mat, first: Int, last: Int, params: LutParams) {
+            val cols = mat.cols()
+            if (rowBytes.size != cols) {
+                rowBytes = ByteArray(cols)
+                rowShorts = ShortArray(cols)
+                rowInts = IntArray(cols)
+            }
+            val pixels = framePixels
+            for (row in first until last) {
+                val offset = row * cols
+                when (lutType) {
+                    CvType.CV_8U -> {
+                        mat.get(row, 0, rowBytes)
+                        for (i in 0 until cols) {
+                            pixels[offset + i] = lut[rowBytes[i].toInt() and 0xFF]
+                        }
+                    }
+                    CvType.CV_16U -> {
+                        mat.get(row, 0, rowShorts)
+                        for (i in 0 until cols) {
+                            pixels[offset + i] = lut[rowShorts[i].toInt() and 0xFFFF]
+                        }
+                    }
+                    CvType.CV_16S -> {
+                        mat.get(row, 0, rowShorts)
+                        for (i in 0 until cols) {
+                            pixels[offset + i] = lut[rowShorts[i] + 32768]
+                        }
+                    }
+                    else -> {
+                        mat.get(row, 0, rowInts)
+                        val palette = palette(params.colormap)
+                        for (i in 0 until cols) {
+                            pixels[offset + i] = palette[index(rowInts[i], params)]
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    companion object {
+        // Fewer rows per band than this costs more in handoff than it saves; small images stay on one thread
+        private const val MIN_BAND_ROWS = 64
+
+        // Shared with the colorbar, so both draw exactly the same colors
+        private val palettes = ConcurrentHashMap<Int, IntArray>()
+
+        // Palette index (0-255) of a stored value
+        internal fun index(stored: Int, params: LutParams): Int {
+            val value = stored * params.slope + params.intercept
+            // A flat image has no width; everything at or above low is then white.
+            val width = if (params.width > 0.0) params.width else Double.MIN_VALUE
+            val index = ((value - params.low) * 255.0 / width).roundToInt().coerceIn(0, 255)
+            return if (params.invert) 255 - index else index
+        }
+
+        /*
+         * ARGB for each 8-bit level: gray, or the OpenCV colormap (as Mat.toBitmap draws it).
+         */
+        fun palette(colormap: Int): IntArray {
+            return palettes.getOrPut(colormap) {
+                if (colormap < 0) {
+                    IntArray(256) { (0xFF shl 24) or (it * 0x010101) }
+                } else {
+                    val ramp = Mat(256, 1, CvType.CV_8U)
+                    ramp.put(0, 0, ByteArray(256) { it.toByte() })
+                    val bgr = Mat()
+                    Imgproc.applyColorMap(ramp, bgr, colormap.coerceIn(0, 20))
+                    val colors = ByteArray(256 * 3)
+                    bgr.get(0, 0, colors)
+                    IntArray(256) {
+                        val b = colors[it * 3].toInt() and 0xFF
+                        val g = colors[it * 3 + 1].toInt() and 0xFF
+                        val r = colors[it * 3 + 2].toInt() and 0xFF
+                        (0xFF shl 24) or (r shl 16) or (g shl 8) or b
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package app.boyd.android.dicom
+
+import android.graphics.Bitmap
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.Process
+import app.boyd.android.dicom.volume.RayCaster
+import app.boyd.android.dicom.volume.RayView
+import app.boyd.android.shared.image.BitmapPool
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * A 3D view to render: which volume, from where, and with what window and colormap.
+ */
+class VolumeRequest(val caster: RayCaster, val view: RayView, val params: LutParams)
+
+/**
+ * Ray casts 3D views on a dedicated thread (each view is then split across all cores).
+ * Like FrameRenderer, only the latest request is kept, and results are delivered on the main thread.
+ */
+class VolumeRenderer(private val pool: BitmapPool, private val listener: Listener) {
+    interface Listener {
+        fun onVolumeRendered(request: VolumeRequest, frame: Bitmap)
+        fun onVolumeFailed(request: VolumeRequest, error: OutOfMemoryError)
+    }
+
+    private val pending = AtomicReference<VolumeRequest?>()
+    private val main = Handler(Looper.getMainLooper())
+    private var worker: Worker? = null
+
+    /*
+     * Render [request] once the current view (if any) is done, dropping any request still waiting.
+     */
+    fun submit(request: VolumeRequest) {
+        if (pending.getAndSet(request) != null) {
+            return
+        }
+        val worker = worker ?: Worker().also { worker = it }
+        worker.handler.post(worker)
+    }
+
+    fun cancel() {
+        pending.set(null)
+    }
+
+    /*
+     * Stop the thread once it's idle; the next submit starts a new one.
+     */
+    fun quit() {
+        cancel()
+        worker?.thread?.quitSafely()
+        worker = null
+    }
+
+    private inner class Worker : Runnable {
+        val thread = HandlerThread("VolumeRenderer", Process.THREAD_PRIORITY_DISPLAY).apply { start() }
+        val handler = Handler(thread.looper)
+        private var pixels = IntArray(0)
+
+        override fun run() {
+            val request = pending.getAndSet(null) ?: return
+            try {
+                val size = request.view.size
+                if (pixels.size != size * size) {
+                    pixels = IntArray(size * size)
+                }
+                request.caster.render(request.view, request.params, pixels)
+                val frame = pool.get(size, size)
+                frame.setPixels(pixels, 0, size, 0, 0, size, size)
+                main.post { listener.onVolumeRendered(request, frame) }
+            } catch (ex: OutOfMemoryError) {
+                main.post { listener.onVolumeFailed(request, ex) }
+            }
+        }
+    }
+}
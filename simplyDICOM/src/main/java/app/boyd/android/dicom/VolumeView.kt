@@ -0,0 +1,180 @@
+package app.boyd.android.dicom
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.os.Build
+import android.util.AttributeSet
+import android.view.MotionEvent
+import android.view.View
+import android.widget.ImageView
+import androidx.annotation.RequiresApi
+import app.boyd.android.dicom.volume.BrickedVolume
+import app.boyd.android.dicom.volume.RayCaster
+import app.boyd.android.dicom.volume.RayView
+import app.boyd.android.shared.gesture.MultiGestureDetector
+import app.boyd.android.shared.image.BitmapPool
+
+/**
+ * Shows a series in 3D, ray cast through the current window and colormap.
+ *
+ * One finger turns the volume; two fingers adjust the window of [windowView], which owns it.
+ * While turning, views are rendered at reduced resolution with longer steps between samples,
+ * then refined to full quality once the gesture ends.
+ */
+class VolumeView : ImageView, View.OnTouchListener {
+    /** The 2D view whose window and colormap the volume is rendered with */
+    var windowView: DcmImageView? = null
+
+    private var caster: RayCaster? = null
+    private var params: LutParams? = null
+    private var yaw = 0.0
+    private var pitch = 0.0
+    // Set while a gesture is in progress, so renders stay quick until it ends
+    private var interacting = false
+
+    private val bitmapPool = BitmapPool((Runtime.getRuntime().maxMemory() / 32).toInt())
+    private val renderer = VolumeRenderer(bitmapPool, RenderListener())
+    private var mShown: Bitmap? = null
+    private val multiDetector: MultiGestureDetector
+
+    constructor(context: Context) : super(context)
+    @JvmOverloads
+    constructor(context: Context, attrs: AttributeSet?, defStyleAttr: Int = 0) : super(context, attrs, defStyleAttr)
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    constructor(context: Context, attrs: AttributeSet?, defStyleAttr: Int, defStyleRes: Int) : super(context, attrs, defStyleAttr, defStyleRes)
+
+    init {
+        setOnTouchListener(this)
+        multiDetector = MultiGestureDetector(context.applicationContext, MultiListener())
+    }
+
+    /*
+     * Show [bricks] (voxel size [spacing] in mm along x, y and z), or nothing if null.
+     */
+    fun setVolume(bricks: BrickedVolume?, spacing: DoubleArray) {
+        caster = bricks?.let { RayCaster(it, spacing) }
+        renderer.cancel()
+        if (caster == null) {
+            showFrame(null)
+        }
+        render()
+    }
+
+    /*
+     * Window and colormap to render with, e.g. from windowView.windowParams.
+     */
+    fun setWindow(params: LutParams) {
+        this.params = params
+        render()
+    }
+
+    private fun render() {
+        val caster = caster ?: return
+        val params = params ?: return
+        // Roughly a pixel per screen pixel, within what can turn at interactive rates
+        val fullSize = minOf(width, height).takeIf { it > 0 }?.coerceAtMost(MAX_SIZE) ?: MAX_SIZE
+        val view = if (interacting) {
+            RayView(yaw, pitch, (fullSize / PREVIEW_SCALE).coerceAtLeast(1), PREVIEW_STEP)
+        } else {
+            RayView(yaw, pitch, fullSize, FULL_STEP)
+        }
+        renderer.submit(VolumeRequest(caster, view, params))
+    }
+
+    private fun showFrame(bitmap: Bitmap?) {
+        val previous = mShown
+        setImageBitmap(bitmap)
+        mShown = bitmap
+        if (previous != null && previous !== bitmap) {
+            bitmapPool.put(previous)
+        }
+    }
+
+    override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
+        super.onSizeChanged(w, h, oldw, oldh)
+        render()
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        renderer.quit()
+    }
+
+    override fun onTouch(v: View, event: MotionEvent?): Boolean {
+        caster ?: return false
+        multiDetector.onTouchEvent(event)
+
+        if (event?.action == MotionEvent.ACTION_UP) {
+            multiDetector.resetScrollMode()
+            windowView?.endWindowDrag()
+            if (interacting) {
+                // Refine the last preview
+                interacting = false
+                render()
+            }
+        }
+        return true
+    }
+
+    companion object {
+        // Longest side of a full-quality view
+        private const val MAX_SIZE = 512
+        // While turning: this many times fewer pixels across, and samples this many voxels apart
+        private const val PREVIEW_SCALE = 2
+        private const val PREVIEW_STEP = 2.0
+        private const val FULL_STEP = 1.0
+        // Degrees turned per pixel dragged
+        private const val DEGREES_PER_PIXEL = 0.3
+    }
+
+    private inner class RenderListener : VolumeRenderer.Listener {
+        override fun onVolumeRendered(request: VolumeRequest, frame: Bitmap) {
+            // Views arrive in order, so one a turn has already moved past is still the newest yet
+            if (request.caster !== caster) {
+                bitmapPool.put(frame)
+                return
+            }
+            showFrame(frame)
+        }
+
+        override fun onVolumeFailed(request: VolumeRequest, error: OutOfMemoryError) {
+            if (request.caster !== caster) {
+                return
+            }
+            System.gc()
+
+            (context as? DcmViewer)?.showMemoryDialog()
+        }
+    }
+
+    private inner class MultiListener : MultiGestureDetector.SimpleMultiGestureListener() {
+        override fun onDoubleTapEvent(e: MotionEvent?): Boolean {
+            // Back to the front view
+            yaw = 0.0
+            pitch = 0.0
+            render()
+            return true
+        }
+
+        override fun onMove(e1: MotionEvent?, e2: MotionEvent?,
+                            distanceX: Float, distanceY: Float, numPointers: Int): Boolean {
+            when (numPointers) {
+                1 -> {
+                    interacting = true
+                    yaw = (yaw - distanceX * DEGREES_PER_PIXEL) % 360.0
+                    pitch = (pitch + distanceY * DEGREES_PER_PIXEL).coerceIn(-90.0, 90.0)
+                    render()
+                    return true
+                }
+                2 -> {
+                    // The window view reports the change back through setWindow
+                    interacting = true
+                    windowView?.dragWindow(distanceX, distanceY, multiDetector.isTravelY)
+                    return true
+                }
+                else -> return false
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package app.boyd.android.dicom.tasks
+
+import android.os.AsyncTask
+import android.util.Log
+import app.boyd.android.dicom.DcmViewer
+import app.boyd.android.dicom.volume.DcmSeries
+import app.boyd.android.dicom.volume.nativeHeadroom
+import org.opencv.core.CvException
+import org.opencv.core.CvType
+import java.lang.ref.WeakReference
+
+/**
+ * Builds a loaded series' axis-major copies in the background, if there's room for them.
+ */
+class AxisCopiesTask internal constructor(context: DcmViewer) : AsyncTask<DcmSeries, Void, Boolean>() {
+
+    private val viewerRef: WeakReference<DcmViewer> = WeakReference(context)
+
+    override fun doInBackground(vararg series: DcmSeries): Boolean {
+        val viewer = viewerRef.get()
+        if (viewer == null || viewer.isFinishing) return false
+        val volume = series.firstOrNull() ?: return false
+
+        // Two copies, plus a third while the sagittal one is transposed
+        val bytes = volume.depth.toLong() * volume.rows * volume.cols * CvType.ELEM_SIZE(volume.type)
+        if (bytes * 3 > viewer.nativeHeadroom() * BUDGET) {
+            Log.i("cpb", "Skipping axis copies: not enough memory")
+            return false
+        }
+        return try {
+            volume.buildAxisCopies()
+        } catch (ex: OutOfMemoryError) {
+            volume.dropAxisCopies()
+            false
+        } catch (ex: CvException) {
+            Log.w("cpb", "Couldn't build axis copies", ex)
+            volume.dropAxisCopies()
+            false
+        }
+    }
+
+    override fun onPostExecute(result: Boolean) {
+        Log.i("cpb", "Axis copies built: $result")
+    }
+
+    companion object {
+        // Share of free native memory the copies may take
+        private const val BUDGET = 0.5
+    }
+}
@@ -0,0 +1,39 @@
+package app.boyd.android.dicom.tasks
+
+import android.os.AsyncTask
+import android.util.Log
+import app.boyd.android.dicom.DcmViewer
+import app.boyd.android.dicom.volume.BrickedVolume
+import app.boyd.android.dicom.volume.DcmVolume
+import java.lang.ref.WeakReference
+
+/**
+ * Bricks a loaded volume in the background, for the 3D view.
+ */
+class BricksTask internal constructor(context: DcmViewer, private val volume: DcmVolume) :
+        AsyncTask<Void, Void, BrickedVolume?>() {
+
+    private val viewerRef: WeakReference<DcmViewer> = WeakReference(context)
+
+    override fun doInBackground(vararg params: Void): BrickedVolume? {
+        val viewer = viewerRef.get()
+        if (viewer == null || viewer.isFinishing) return null
+        return try {
+            val start = System.nanoTime()
+            // Stops between slices once a new series replaces this one
+            BrickedVolume.build(volume) { isCancelled }?.also {
+                Log.i("cpb", "Bricked ${it.byteCount} bytes in ${(System.nanoTime() - start) / 1000000} ms")
+            }
+        } catch (ex: OutOfMemoryError) {
+            null
+        } catch (ex: IllegalArgumentException) {
+            // Too large for one buffer, or a pixel type that can't be bricked
+            Log.w("cpb", "Couldn't brick volume", ex)
+            null
+        }
+    }
+
+    override fun onPostExecute(result: BrickedVolume?) {
+        viewerRef.get()?.bricksResult(volume, result)
+    }
+}
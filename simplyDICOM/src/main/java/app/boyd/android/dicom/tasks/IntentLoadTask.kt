@@ -4,13 +4,15 @@ import android.content.Intent
 import android.net.Uri
 import android.os.AsyncTask
 import app.boyd.android.dicom.DcmViewer
+import app.boyd.android.dicom.DcmProbe
 import app.boyd.android.dicom.checkAttributes
-import app.boyd.android.dicom.getMat
 import org.dcm4che3.data.Attributes
 import org.opencv.core.Mat
 import java.lang.ref.WeakReference
 
-class IntentLoadTaskResult(val attributes: Attributes, val uris: List<Uri>, val mat: Mat? = attributes.getMat())
+class IntentLoadTaskResult(val attributes: Attributes, val uris: List<Uri>, val mat: Mat?) {
+    constructor(probe: DcmProbe, uris: List<Uri>) : this(probe.attributes, uris, probe.mat)
+}
 
 class IntentLoadTask internal constructor(context: DcmViewer) : AsyncTask<Intent, Int, IntentLoadTaskResult?>() {
 
@@ -28,28 +30,28 @@ class IntentLoadTask internal constructor(context: DcmViewer) : AsyncTask<Intent
         val uris = ArrayList<Uri>()
         if (multi == null) {
             val uri = intent.data ?: return null
-            val pair = viewer.checkAttributes(uri)
+            val pair = viewer.checkAttributes(uri, readPixels = true)
             errorMsg = pair.second
             return pair.first?.let { IntentLoadTaskResult(it, uris) }
         }
 
-        var attr: Attributes? = null
+        var probe: DcmProbe? = null
         for (i in 0 until multi.itemCount) {
             val uri = multi.getItemAt(i)?.uri ?: continue
 
             // If we've already found attributes, just add the rest to a list
-            if (attr != null) {
+            if (probe != null) {
                 uris.add(uri)
                 continue
             }
 
-            val pair = viewer.checkAttributes(uri)
+            val pair = viewer.checkAttributes(uri, readPixels = true)
             // TODO: Add error list for all files?
             errorMsg = pair.second
-            pair.first?.let { attr = it }
+            pair.first?.let { probe = it }
         }
 
-        return attr?.let { IntentLoadTaskResult(it, uris) }
+        return probe?.let { IntentLoadTaskResult(it, uris) }
     }
 
     // After loading, adjust display.
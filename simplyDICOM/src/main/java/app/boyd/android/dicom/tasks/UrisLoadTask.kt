@@ -5,35 +5,94 @@ import android.os.AsyncTask
 import android.util.Log
 import org.dcm4che3.data.Attributes
 import org.dcm4che3.data.Tag
+import org.opencv.core.CvException
 import org.opencv.core.CvType
 import org.opencv.core.Mat
+import org.opencv.core.Scalar
+import org.opencv.imgproc.Imgproc
 import app.boyd.android.dicom.DcmViewer
+import app.boyd.android.dicom.PixelDataInfo
 import app.boyd.android.dicom.checkAttributes
+import app.boyd.android.dicom.matType
+import app.boyd.android.dicom.readPixels
+import app.boyd.android.dicom.volume.CompressedSeries
+import app.boyd.android.dicom.volume.DcmSeries
+import app.boyd.android.dicom.volume.DcmVolume
+import app.boyd.android.dicom.volume.LoadPlan
+import app.boyd.android.dicom.volume.LoadStrategy
+import app.boyd.android.dicom.volume.PagedSeries
+import app.boyd.android.dicom.volume.SeriesStats
+import app.boyd.android.dicom.volume.SliceCache
+import app.boyd.android.dicom.volume.SliceLocator
+import app.boyd.android.dicom.volume.SliceStats
 import java.lang.ref.WeakReference
-import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.abs
 
-class UrisLoadTaskInput(val attributes: Attributes, val mat: Mat?, val uriList: List<Uri>) {
-    constructor(result: IntentLoadTaskResult, uriList: List<Uri>) :
-            this(result.attributes, result.mat, uriList)
+class UrisLoadTaskInput(val attributes: Attributes, val mat: Mat?, val uriList: List<Uri>, val plan: LoadPlan,
+                        val cache: SliceCache?) {
+    constructor(result: IntentLoadTaskResult, uriList: List<Uri>, plan: LoadPlan, cache: SliceCache?) :
+            this(result.attributes, result.mat, uriList, plan, cache)
 }
 
-class UrisLoadTaskResult(val currentInstance: Int, val matList: List<Mat>, val zList: List<Int>)
+/** [failed] marks the slices whose file couldn't be decoded; they're left blank. */
+class UrisLoadTaskResult(val currentInstance: Int, val series: DcmSeries, val zList: List<Int>,
+                         val stats: SeriesStats = SeriesStats(series.depth),
+                         val failed: BooleanArray = BooleanArray(series.depth))
 
-class UrisLoadTask internal constructor(context: DcmViewer) : AsyncTask<UrisLoadTaskInput, Pair<Int, Int>, UrisLoadTaskResult?>() {
+/** Files handled so far. During decoding, [z] is the slice that just finished (-1 while probing). */
+class UrisLoadTaskProgress(val done: Int, val total: Int, val z: Int = -1)
+
+/** A file accepted into the series, ordered by its instance number. */
+private class SliceSource(val instance: Int, val uri: Uri?, val mat: Mat? = null, val pixelData: PixelDataInfo? = null)
+
+class UrisLoadTask internal constructor(context: DcmViewer) : AsyncTask<UrisLoadTaskInput, UrisLoadTaskProgress, UrisLoadTaskResult?>() {
 
     private val viewerRef: WeakReference<DcmViewer> = WeakReference(context)
+    private var outOfMemory = false
+
+    // The series, handed to the viewer as soon as its first slice is decoded
+    private var partial: UrisLoadTaskResult? = null
+    // Decoded slices, and the contiguous range of them around the opened file (UI thread only)
+    private var loaded = BooleanArray(0)
+    private var loadedFirst = 0
+    private var loadedLast = 0
 
     override fun doInBackground(vararg params: UrisLoadTaskInput): UrisLoadTaskResult? {
-        val input = params[0]
+        // Parsing and decoding are CPU bound, so use one worker per core.
+        val pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors().coerceAtLeast(1))
+        try {
+            return load(params[0], pool)
+        } catch (ex: InterruptedException) {
+            // Cancelled while waiting on the workers
+            return null
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    private val isStopped: Boolean
+        get() {
+            val viewer = viewerRef.get()
+            return viewer == null || viewer.isFinishing || isCancelled
+        }
+
+    private fun load(input: UrisLoadTaskInput, pool: ExecutorService): UrisLoadTaskResult? {
         val attributes = input.attributes
         val rows = attributes.getInt(Tag.Rows, 1)
         val cols = attributes.getInt(Tag.Columns, 1)
+        val type = attributes.matType()
         val studyUID = attributes.getString(Tag.StudyInstanceUID)
         val seriesUID = attributes.getString(Tag.SeriesInstanceUID)
         val instance = attributes.getInt(Tag.InstanceNumber, -1)
         val spacing = attributes.getDoubles(Tag.PixelSpacing)
         val startPos = attributes.getDoubles(Tag.ImagePositionPatient)
+        val plan = input.plan
+        val factor = if (plan.strategy == LoadStrategy.DOWNSAMPLED) plan.downsample else 1
 
         val uriList = input.uriList
         val totalFiles = uriList.size
@@ -43,26 +102,36 @@ class UrisLoadTask internal constructor(context: DcmViewer) : AsyncTask<UrisLoad
         }
 
         val instanceZ = (instance - 1).coerceAtLeast(0)
-        val matList = ArrayList<Mat?>()
-        val zList = ArrayList<Int?>()
-        for (i in 0 until instanceZ) {
-            matList.add(null)
-            zList.add(null)
-        }
-        matList.add(input.mat)
-        zList.add(instanceZ)
+        val sources = ArrayList<SliceSource>()
+        sources.add(SliceSource(instance, null, input.mat))
 
-        var setSpacing = false
-        for ((i, uri) in uriList.withIndex()) {
-            val viewer = viewerRef.get()
-            if (viewer == null || viewer.isFinishing) {
-                return null
+        // First pass: probe the headers to find which files belong to the series.
+        val probedCount = AtomicInteger()
+        val probes = pool.invokeAll(uriList.map { uri ->
+            Callable {
+                if (isStopped) return@Callable null
+                val probe = viewerRef.get()?.checkAttributes(uri)?.first
+                publishProgress(UrisLoadTaskProgress(probedCount.incrementAndGet(), totalFiles))
+                probe
             }
+        }).mapIndexed { i, probe ->
+            try {
+                probe.get()
+            } catch (ex: ExecutionException) {
+                // Leave the file out of the series rather than abandon the load
+                Log.w("cpb", "Skipping file: probe failed for ${uriList[i]}", ex.cause)
+                null
+            }
+        }
+        val viewer = viewerRef.get()
+        if (viewer == null || isStopped) {
+            return null
+        }
 
-            publishProgress(i, totalFiles)
-
-            val pair = viewer.checkAttributes(uri)
-            val currDcm = pair.first ?: continue
+        // Validate in file order, so the result doesn't depend on which probe finished first.
+        var setSpacing = false
+        for ((uri, probe) in uriList.zip(probes)) {
+            val currDcm = probe?.attributes ?: continue
 
             // Check the instance number
             val instanceNum = currDcm.getInt(Tag.InstanceNumber, -1)
@@ -73,12 +142,14 @@ class UrisLoadTask internal constructor(context: DcmViewer) : AsyncTask<UrisLoad
             }
 
             // Spacing definition moved up
-            if (!setSpacing && spacing != null && (spacing.count() > 1) && (startPos.count() > 2) &&
+            if (!setSpacing && spacing != null && (spacing.count() > 1) && startPos != null && (startPos.count() > 2) &&
                     (instanceZ + 2 == instanceNum || instanceNum == instanceZ)) {
                 val nextPos = currDcm.getDoubles(Tag.ImagePositionPatient)
                 // Get currently loaded attributes
-                if (nextPos.count() > 2) {
-                    viewer.setSpacing(spacing, abs(startPos[2] - nextPos[2]))
+                if (nextPos != null && nextPos.count() > 2) {
+                    // Downsampled pixels cover [factor] times the original spacing
+                    viewer.setSpacing(doubleArrayOf(spacing[0] * factor, spacing[1] * factor),
+                            abs(startPos[2] - nextPos[2]))
                     setSpacing = true
                 }
             }
@@ -90,37 +161,148 @@ class UrisLoadTask internal constructor(context: DcmViewer) : AsyncTask<UrisLoad
                 continue
             }
 
+            // Slices are stored at their native depth, so they must all share it.
+            if (type != currDcm.matType()) {
+                Log.i("cpb", "Skipping file: pixel type mismatch")
+                continue
+            }
+
             if (studyUID == currDcm.getString(Tag.StudyInstanceUID) && seriesUID == currDcm.getString(Tag.SeriesInstanceUID)) {
-                // If there isn't enough space in the list, allocate more.
-                while (matList.size < instanceNum) {
-                    matList.add(null)
-                    zList.add(null)
-                }
+                sources.add(SliceSource(instanceNum, uri, pixelData = probe.pixelData))
+            }
+        }
 
-                val mat = Mat(rows, cols, CvType.CV_32S)
-                mat.put(0, 0, currDcm.getInts(Tag.PixelData))
+        // Order by instance number. The opened file comes first, so it wins any duplicates.
+        val sorted = sources.sortedBy { it.instance }.distinctBy { it.instance }
+        if (plan.strategy == LoadStrategy.PAGED) {
+            // Nothing to decode up front: slices are read from their files as they're viewed.
+            val locators = sorted.map { SliceLocator(it.uri, it.pixelData, it.mat) }
+            val series = PagedSeries(viewer, attributes, locators, rows, cols, type, seriesUID ?: "", input.cache)
+            return UrisLoadTaskResult(instanceZ, series, sorted.map { it.instance - 1 })
+        }
 
-                val z = instanceNum - 1
-                matList[z] = mat
-                zList[z] = z
+        val series = try {
+            when (plan.strategy) {
+                LoadStrategy.FULL -> DcmVolume(sorted.size, rows, cols, type)
+                LoadStrategy.COMPRESSED -> CompressedSeries(sorted.size, rows, cols, type, seriesUID ?: "", input.cache)
+                else -> DcmVolume(sorted.size,
+                        (rows / factor).coerceAtLeast(1), (cols / factor).coerceAtLeast(1), type)
             }
+        } catch (ex: CvException) {
+            outOfMemory = true
+            return null
         }
 
-        // Display 100% (if only briefly)
-        publishProgress(totalFiles, totalFiles)
-        return UrisLoadTaskResult(instanceZ, matList.filterNotNull(), zList.filterNotNull())
-    }
+        // Second pass: decode each file into its slice of the series.
+        // Every slice has a fixed place, so workers can finish in any order.
+        // Start from the opened file and work outwards, so the viewer can browse its neighbours first.
+        val startZ = sorted.indexOfFirst { it.instance == instance }.coerceAtLeast(0)
+        loaded = BooleanArray(sorted.size)
+        loadedFirst = startZ
+        loadedLast = startZ
+        val stats = SeriesStats(sorted.size)
+        val failed = BooleanArray(sorted.size)
+        partial = UrisLoadTaskResult(instanceZ, series, sorted.map { it.instance - 1 }, stats, failed)
+        val scratch = object : ThreadLocal<Mat>() {
+            override fun initialValue() = Mat(rows, cols, type)
+        }
+
+        fun decodeSlice(z: Int) {
+            val source = sorted[z]
+            // A full volume is decoded in place; otherwise decode into scratch and then reduce.
+            val dst = if (plan.strategy == LoadStrategy.FULL) (series as DcmVolume).slice(z) else scratch.get()!!
+            val decoded = try {
+                source.mat?.let {
+                    it.copyTo(dst)
+                    true
+                } ?: source.uri?.let { uri -> viewerRef.get()?.readPixels(uri, dst) } ?: false
+            } catch (ex: CvException) {
+                Log.w("cpb", "Failed to decode slice $z", ex)
+                false
+            }
+            if (!decoded) {
+                // Blank, but kept out of the stats so it doesn't skew the series window
+                failed[z] = true
+                dst.setTo(Scalar(0.0))
+            }
+            val slice = when {
+                series is CompressedSeries -> {
+                    series.store(z, dst)
+                    dst
+                }
+                factor > 1 -> {
+                    val small = (series as DcmVolume).slice(z)
+                    // Area averaging isn't implemented for 32-bit integers
+                    val interpolation = if (type == CvType.CV_32S) Imgproc.INTER_NEAREST else Imgproc.INTER_AREA
+                    Imgproc.resize(dst, small, small.size(), 0.0, 0.0, interpolation)
+                    small
+                }
+                else -> dst
+            }
+            // Computed here, in parallel, so windowing never has to scan the pixels again
+            if (decoded) {
+                stats.set(z, SliceStats.of(slice))
+            }
+        }
 
-    private fun publishProgress(currentIndex: Int, totalFiles: Int) {
-        publishProgress(Pair(currentIndex, totalFiles))
+        val decodedCount = AtomicInteger()
+        val order = sorted.indices.sortedBy { abs(it - startZ) }
+        val decodes = pool.invokeAll(order.map { z ->
+            Callable {
+                if (isStopped) return@Callable
+                try {
+                    decodeSlice(z)
+                } finally {
+                    // Even a failed slice is done, so the browsable range can grow past it
+                    publishProgress(UrisLoadTaskProgress(decodedCount.incrementAndGet(), sorted.size, z))
+                }
+            }
+        })
+        for ((z, decode) in order.zip(decodes)) {
+            try {
+                decode.get()
+            } catch (ex: ExecutionException) {
+                // Anything the slice itself didn't handle, e.g. storing it
+                Log.w("cpb", "Failed to load slice $z", ex.cause)
+                failed[z] = true
+                if (ex.cause is OutOfMemoryError) {
+                    outOfMemory = true
+                }
+            }
+        }
+        if (isStopped) {
+            return null
+        }
+
+        // The per-slice stats were the parallel part; reducing them is cheap.
+        stats.complete()
+        return partial
     }
 
-    override fun onProgressUpdate(vararg pairs: Pair<Int, Int>?) {
-        val progress = pairs.last() ?: return
+    override fun onProgressUpdate(vararg values: UrisLoadTaskProgress?) {
+        val progress = values.last() ?: return
         // get a reference to the activity if it is still there
         val viewer = viewerRef.get()
         if (viewer == null || viewer.isFinishing) return
-        viewer.updateProgress(progress)
+        if (progress.z < 0) {
+            viewer.updateProgress(Pair(progress.done, progress.total))
+            return
+        }
+
+        // Publish the series once the opened slice is in, then grow the browsable range.
+        val series = partial ?: return
+        val wasShown = loaded[loadedFirst]
+        loaded[progress.z] = true
+        if (!loaded[loadedFirst]) return
+        val first = loadedFirst
+        val last = loadedLast
+        while (loadedFirst > 0 && loaded[loadedFirst - 1]) loadedFirst--
+        while (loadedLast < loaded.size - 1 && loaded[loadedLast + 1]) loadedLast++
+        if (!wasShown) {
+            viewer.showSeries(series, loadedFirst..loadedLast)
+        } else if (first != loadedFirst || last != loadedLast) {
+            viewer.updateLoadedRange(loadedFirst..loadedLast)
+        }
     }
 
     // After loading, adjust display.
@@ -128,6 +310,9 @@ class UrisLoadTask internal constructor(context: DcmViewer) : AsyncTask<UrisLoad
         // get a reference to the activity if it is still there
         val viewer = viewerRef.get()
         if (viewer == null || viewer.isFinishing) return
+        if (outOfMemory) {
+            viewer.showMemoryDialog()
+        }
         viewer.loadResult(result)
     }
 }
\ No newline at end of file
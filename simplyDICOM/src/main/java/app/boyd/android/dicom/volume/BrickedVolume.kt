@@ -0,0 +1,359 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import app.boyd.android.dicom.forEachBand
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.floor
+
+/**
+ * A copy of a [DcmVolume] tiled into cubic bricks of [brickSize]³ voxels, so voxels that are close in
+ * any direction are close in memory. Sampling along any plane, or any ray, touches a few bricks
+ * rather than one row of every slice.
+ *
+ * The bricks live in one direct (native) buffer, read straight from Kotlin without a JNI call per voxel.
+ * Bricks along the far edges are padded with zeros.
+ * Voxels are stored in the volume's own type; [voxel] widens them to Int.
+ * Sampling is thread-safe, but [plane] and [resample] share scratch buffers: call them from one thread at a time.
+ */
+class BrickedVolume private constructor(val cols: Int, val rows: Int, val depth: Int, val type: Int,
+                                        val brickSize: Int) {
+    private val shift = Integer.numberOfTrailingZeros(brickSize)
+    private val mask = brickSize - 1
+    private val brickVoxels = brickSize * brickSize * brickSize
+
+    /** Bricks along x, y and z */
+    val bricksX = (cols + mask) shr shift
+    val bricksY = (rows + mask) shr shift
+    val bricksZ = (depth + mask) shr shift
+
+    private val voxels = Voxels.create(type, bricksX.toLong() * bricksY * bricksZ * brickVoxels)
+
+    /**
+     * Lowest and highest voxel each brick can interpolate from: its own, plus the next voxel along
+     * each axis. A ray can skip any brick whose whole range is transparent.
+     */
+    val brickMin = IntArray(bricksX * bricksY * bricksZ)
+    val brickMax = IntArray(bricksX * bricksY * bricksZ)
+
+    /** Lowest and highest voxel in the volume */
+    var min = 0
+        private set
+    var max = 0
+        private set
+
+    // Trilinear output and axis-aligned planes, before they're converted back to the volume's type.
+    // Shared by every call to plane and resample.
+    private var samples = FloatArray(0)
+    private var planeValues = IntArray(0)
+    private val sampleMat = Mat()
+    private val planeMat = Mat()
+
+    /** Native bytes held by the bricks */
+    val byteCount: Long
+        get() = voxels.buffer.capacity().toLong()
+
+    /*
+     * Position of voxel (x, y, z) in the arena: its brick, then z, y, x within the brick.
+     */
+    fun index(x: Int, y: Int, z: Int): Int {
+        return brick(x, y, z) * brickVoxels + ((((z and mask) shl shift) + (y and mask)) shl shift) + (x and mask)
+    }
+
+    fun voxel(x: Int, y: Int, z: Int): Int = voxels[index(x, y, z)]
+
+    /** Brick holding voxel (x, y, z), as an index into [brickMin] and [brickMax] */
+    fun brick(x: Int, y: Int, z: Int): Int = ((z shr shift) * bricksY + (y shr shift)) * bricksX + (x shr shift)
+
+    /*
+     * Trilinear sample at voxel coordinates (x, y, z), each within [0, size - 1].
+     */
+    fun sample(x: Double, y: Double, z: Double): Double {
+        val x0 = floor(x).toInt().coerceAtMost(cols - 2).coerceAtLeast(0)
+        val y0 = floor(y).toInt().coerceAtMost(rows - 2).coerceAtLeast(0)
+        val z0 = floor(z).toInt().coerceAtMost(depth - 2).coerceAtLeast(0)
+        // Single-voxel axes collapse to the one voxel
+        val x1 = (x0 + 1).coerceAtMost(cols - 1)
+        val y1 = (y0 + 1).coerceAtMost(rows - 1)
+        val z1 = (z0 + 1).coerceAtMost(depth - 1)
+        val fx = x - x0
+        val fy = y - y0
+        val fz = z - z0
+        val c00: Double
+        val c10: Double
+        val c01: Double
+        val c11: Double
+        if ((x0 and mask) != mask && (y0 and mask) != mask && (z0 and mask) != mask && x1 > x0 && y1 > y0 && z1 > z0) {
+            // All 8 neighbours in one brick, at fixed offsets from the first
+            val i = index(x0, y0, z0)
+            val dy = brickSize
+            val dz = brickSize * brickSize
+            c00 = lerp(voxels[i], voxels[i + 1], fx)
+            c10 = lerp(voxels[i + dy], voxels[i + dy + 1], fx)
+            c01 = lerp(voxels[i + dz], voxels[i + dz + 1], fx)
+            c11 = lerp(voxels[i + dy + dz], voxels[i + dy + dz + 1], fx)
+        } else {
+            c00 = lerp(voxel(x0, y0, z0), voxel(x1, y0, z0), fx)
+            c10 = lerp(voxel(x0, y1, z0), voxel(x1, y1, z0), fx)
+            c01 = lerp(voxel(x0, y0, z1), voxel(x1, y0, z1), fx)
+            c11 = lerp(voxel(x0, y1, z1), voxel(x1, y1, z1), fx)
+        }
+        val c0 = c00 + (c10 - c00) * fy
+        val c1 = c01 + (c11 - c01) * fy
+        return c0 + (c1 - c0) * fz
+    }
+
+    /*
+     * Plane [index] along [axis], shaped as DcmSeries.plane returns it, into [dst].
+     */
+    fun plane(axis: Axis, index: Int, dst: Mat) {
+        val planeRows: Int
+        val planeCols: Int
+        when (axis) {
+            Axis.TRANSVERSE -> {
+                planeRows = rows
+                planeCols = cols
+            }
+            Axis.CORONAL -> {
+                planeRows = depth
+                planeCols = cols
+            }
+            Axis.SAGITTAL -> {
+                planeRows = rows
+                planeCols = depth
+            }
+            Axis.OBLIQUE, Axis.VOLUME -> throw IllegalArgumentException("Only axis-aligned planes are extracted")
+        }
+        if (planeValues.size != planeRows * planeCols) {
+            planeValues = IntArray(planeRows * planeCols)
+        }
+        // Columns run along x (stride 1 within a brick), or along z for sagittal planes
+        val stride = if (axis == Axis.SAGITTAL) brickSize * brickSize else 1
+        forEachBand(planeRows, MIN_BAND_ROWS) { first, last ->
+            for (r in first until last) {
+                var i = r * planeCols
+                var c = 0
+                // A brick's worth of columns at a time
+                while (c < planeCols) {
+                    var voxel = when (axis) {
+                        Axis.TRANSVERSE -> index(c, r, index)
+                        Axis.CORONAL -> index(c, index, r)
+                        else -> index(index, r, c)
+                    }
+                    val end = (c + brickSize - (c and mask)).coerceAtMost(planeCols)
+                    while (c < end) {
+                        planeValues[i++] = voxels[voxel]
+                        voxel += stride
+                        c++
+                    }
+                }
+            }
+        }
+        planeMat.create(planeRows, planeCols, CvType.CV_32S)
+        planeMat.put(0, 0, planeValues)
+        planeMat.convertTo(dst, type)
+    }
+
+    /*
+     * Trilinear resample of [plane] into [dst], in the volume's type. [spacing] is the voxel size in mm
+     * along x, y and z; samples outside the volume are [background].
+     */
+    fun resample(plane: ObliquePlane, spacing: DoubleArray, background: Double, dst: Mat) {
+        val cols = plane.cols
+        if (samples.size != plane.rows * cols) {
+            samples = FloatArray(plane.rows * cols)
+        }
+        // Voxel steps per output column and row
+        val ux = plane.u[0] * plane.pixel / spacing[0]
+        val uy = plane.u[1] * plane.pixel / spacing[1]
+        val uz = plane.u[2] * plane.pixel / spacing[2]
+        val vx = plane.v[0] * plane.pixel / spacing[0]
+        val vy = plane.v[1] * plane.pixel / spacing[1]
+        val vz = plane.v[2] * plane.pixel / spacing[2]
+        forEachBand(plane.rows, MIN_BAND_ROWS) { first, last ->
+            for (r in first until last) {
+                var x = plane.origin[0] / spacing[0] + r * vx
+                var y = plane.origin[1] / spacing[1] + r * vy
+                var z = plane.origin[2] / spacing[2] + r * vz
+                var i = r * cols
+                for (c in 0 until cols) {
+                    val inside = x >= 0.0 && y >= 0.0 && z >= 0.0 &&
+                            x <= this.cols - 1 && y <= rows - 1 && z <= depth - 1
+                    samples[i++] = (if (inside) sample(x, y, z) else background).toFloat()
+                    x += ux
+                    y += uy
+                    z += uz
+                }
+            }
+        }
+        sampleMat.create(plane.rows, cols, CvType.CV_32F)
+        sampleMat.put(0, 0, samples)
+        sampleMat.convertTo(dst, type)
+    }
+
+    private fun lerp(a: Int, b: Int, f: Double): Double = a + (b - a) * f
+
+    // Each slice is read out once, then scattered a brick row at a time. False if cancelled part-way.
+    private fun load(volume: DcmVolume, cancelled: () -> Boolean): Boolean {
+        for (z in 0 until depth) {
+            if (cancelled()) {
+                return false
+            }
+            voxels.read(volume.slice(z))
+            for (y in 0 until rows) {
+                var x = 0
+                while (x < cols) {
+                    val length = (brickSize - (x and mask)).coerceAtMost(cols - x)
+                    voxels.put(y * cols + x, index(x, y, z), length)
+                    x += length
+                }
+            }
+        }
+        forEachBand(bricksZ, 1) { first, last ->
+            for (bz in first until last) {
+                findRanges(bz)
+            }
+        }
+        min = brickMin.min() ?: 0
+        max = brickMax.max() ?: 0
+        return true
+    }
+
+    // Ranges of one layer of bricks, each reaching into the first voxel of the next brick along x, y and z
+    private fun findRanges(bz: Int) {
+        for (by in 0 until bricksY) {
+            for (bx in 0 until bricksX) {
+                var low = Int.MAX_VALUE
+                var high = Int.MIN_VALUE
+                for (z in (bz shl shift)..((bz + 1) shl shift).coerceAtMost(depth - 1)) {
+                    for (y in (by shl shift)..((by + 1) shl shift).coerceAtMost(rows - 1)) {
+                        for (x in (bx shl shift)..((bx + 1) shl shift).coerceAtMost(cols - 1)) {
+                            val value = voxel(x, y, z)
+                            low = minOf(low, value)
+                            high = maxOf(high, value)
+                        }
+                    }
+                }
+                val brick = (bz * bricksY + by) * bricksX + bx
+                brickMin[brick] = low
+                brickMax[brick] = high
+            }
+        }
+    }
+
+    /*
+     * Typed reads and writes on the arena, so each voxel type is read without branching per voxel.
+     */
+    private abstract class Voxels(val buffer: ByteBuffer) {
+        abstract operator fun get(i: Int): Int
+
+        // Copy a slice's pixels out of native memory, ready for put
+        abstract fun read(slice: Mat)
+
+        // Copy [length] pixels of the last slice read, from [offset], to arena position [index]
+        abstract fun put(offset: Int, index: Int, length: Int)
+
+        companion object {
+            fun create(type: Int, count: Long): Voxels {
+                val bytes = count * CvType.ELEM_SIZE(type)
+                require(bytes <= Int.MAX_VALUE) { "Volume too large to brick" }
+                val buffer = ByteBuffer.allocateDirect(bytes.toInt()).order(ByteOrder.nativeOrder())
+                return when (type) {
+                    CvType.CV_8U -> ByteVoxels(buffer)
+                    CvType.CV_16U -> ShortVoxels(buffer, false)
+                    CvType.CV_16S -> ShortVoxels(buffer, true)
+                    CvType.CV_32S -> IntVoxels(buffer)
+                    else -> throw IllegalArgumentException("Unsupported type: ${CvType.typeToString(type)}")
+                }
+            }
+        }
+    }
+
+    private class ByteVoxels(buffer: ByteBuffer) : Voxels(buffer) {
+        private var slice = ByteArray(0)
+
+        override fun get(i: Int): Int = buffer.get(i).toInt() and 0xFF
+
+        override fun read(slice: Mat) {
+            if (this.slice.size != slice.total().toInt()) {
+                this.slice = ByteArray(slice.total().toInt())
+            }
+            slice.get(0, 0, this.slice)
+        }
+
+        override fun put(offset: Int, index: Int, length: Int) {
+            buffer.position(index)
+            buffer.put(slice, offset, length)
+        }
+    }
+
+    private class ShortVoxels(buffer: ByteBuffer, private val signed: Boolean) : Voxels(buffer) {
+        private val shorts = buffer.asShortBuffer()
+        private var slice = ShortArray(0)
+
+        override fun get(i: Int): Int {
+            val value = shorts.get(i).toInt()
+            return if (signed) value else value and 0xFFFF
+        }
+
+        override fun read(slice: Mat) {
+            if (this.slice.size != slice.total().toInt()) {
+                this.slice = ShortArray(slice.total().toInt())
+            }
+            slice.get(0, 0, this.slice)
+        }
+
+        override fun put(offset: Int, index: Int, length: Int) {
+            shorts.position(index)
+            shorts.put(slice, offset, length)
+        }
+    }
+
+    private class IntVoxels(buffer: ByteBuffer) : Voxels(buffer) {
+        private val ints = buffer.asIntBuffer()
+        private var slice = IntArray(0)
+
+        override fun get(i: Int): Int = ints.get(i)
+
+        override fun read(slice: Mat) {
+            if (this.slice.size != slice.total().toInt()) {
+                this.slice = IntArray(slice.total().toInt())
+            }
+            slice.get(0, 0, this.slice)
+        }
+
+        override fun put(offset: Int, index: Int, length: Int) {
+            ints.position(index)
+            ints.put(slice, offset, length)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_BRICK_SIZE = 16
+        private const val MIN_BAND_ROWS = 16
+
+        /*
+         * Brick a copy of [volume]. Slow and as large as the volume; call it off the UI thread.
+         * [brickSize] must be a power of two. [cancelled] is checked between slices; null if it turned true.
+         */
+        fun build(volume: DcmVolume, brickSize: Int = DEFAULT_BRICK_SIZE,
+                  cancelled: () -> Boolean = { false }): BrickedVolume? {
+            require(Integer.bitCount(brickSize) == 1) { "Brick size must be a power of two" }
+            if (cancelled()) {
+                return null
+            }
+            val bricked = BrickedVolume(volume.cols, volume.rows, volume.depth, volume.type, brickSize)
+            return if (bricked.load(volume, cancelled)) bricked else null
+        }
+
+        /*
+         * Native bytes a bricked copy of [series] would take, padding included.
+         */
+        fun byteCount(series: DcmSeries, brickSize: Int = DEFAULT_BRICK_SIZE): Long {
+            fun padded(size: Int) = ((size + brickSize - 1) / brickSize).toLong() * brickSize
+            return padded(series.cols) * padded(series.rows) * padded(series.depth) * CvType.ELEM_SIZE(series.type)
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package app.boyd.android.dicom.volume
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * A series too large to decode in full, kept as deflated slices on the Java heap.
+ *
+ * Slices may be stored from any thread, and are inflated as they're viewed.
+ */
+class CompressedSeries(depth: Int, rows: Int, cols: Int, type: Int, seriesUID: String, cache: SliceCache?) :
+        LazySeries(depth, rows, cols, type, seriesUID, cache) {
+    // Written by the loader's workers while the viewer (and prefetcher) read
+    private val slices = AtomicReferenceArray<ByteArray>(depth)
+    private val codecs = object : ThreadLocal<Codec>() {
+        override fun initialValue() = Codec(rows * cols, type)
+    }
+
+    // Off-axis planes inflate every slice of the series
+    override val resliceable = false
+
+    /*
+     * Compress [mat] (rows x cols, continuous) as slice [z].
+     */
+    fun store(z: Int, mat: Mat) {
+        slices.set(z, codecs.get()!!.deflate(mat))
+    }
+
+    override fun isAvailable(z: Int): Boolean = slices.get(z) != null
+
+    override fun read(z: Int, dst: Mat) {
+        codecs.get()!!.inflate(slices.get(z), dst)
+    }
+
+    /** Per-thread scratch for moving a slice between a Mat and its deflated bytes. */
+    private class Codec(pixels: Int, private val type: Int) {
+        private val raw = ByteBuffer.allocate(pixels * CvType.ELEM_SIZE(type)).order(ByteOrder.nativeOrder())
+        private val shorts = ShortArray(if (CvType.ELEM_SIZE(type) == 2) pixels else 0)
+        private val ints = IntArray(if (CvType.ELEM_SIZE(type) == 4) pixels else 0)
+        private val chunk = ByteArray(64 * 1024)
+        private val deflater = Deflater(Deflater.BEST_SPEED)
+        private val inflater = Inflater()
+
+        fun deflate(mat: Mat): ByteArray {
+            when (CvType.ELEM_SIZE(type)) {
+                1 -> mat.get(0, 0, raw.array())
+                2 -> {
+                    mat.get(0, 0, shorts)
+                    raw.asShortBuffer().put(shorts)
+                }
+                else -> {
+                    mat.get(0, 0, ints)
+                    raw.asIntBuffer().put(ints)
+                }
+            }
+            deflater.reset()
+            deflater.setInput(raw.array())
+            deflater.finish()
+            val out = ByteArrayOutputStream(raw.capacity() / 2)
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk))
+            }
+            return out.toByteArray()
+        }
+
+        fun inflate(data: ByteArray?, dst: Mat) {
+            if (data == null) {
+                // Never stored (e.g. unreadable file)
+                Arrays.fill(raw.array(), 0)
+            } else {
+                inflater.reset()
+                inflater.setInput(data)
+                inflater.inflate(raw.array())
+            }
+            when (CvType.ELEM_SIZE(type)) {
+                1 -> dst.put(0, 0, raw.array())
+                2 -> {
+                    raw.asShortBuffer().get(shorts)
+                    dst.put(0, 0, shorts)
+                }
+                else -> {
+                    raw.asIntBuffer().get(ints)
+                    dst.put(0, 0, ints)
+                }
+            }
+        }
+    }
+}
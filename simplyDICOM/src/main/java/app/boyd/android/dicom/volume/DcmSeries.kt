@@ -0,0 +1,57 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import org.opencv.core.Mat
+
+/**
+ * A loaded series that can be browsed along any [Axis], however its slices are held in memory.
+ */
+interface DcmSeries {
+    val depth: Int
+    val rows: Int
+    val cols: Int
+    val type: Int
+
+    // False if coronal/sagittal planes are too slow to browse (e.g. the series isn't in memory)
+    val resliceable: Boolean
+        get() = true
+
+    fun size(axis: Axis): Int {
+        return when (axis) {
+            Axis.TRANSVERSE -> depth
+            Axis.CORONAL -> rows
+            Axis.SAGITTAL -> cols
+            // Only ObliqueSeries resamples
+            Axis.OBLIQUE -> 0
+            Axis.VOLUME -> 0
+        }
+    }
+
+    /*
+     * Returns plane [index] along [axis].
+     * Transverse: rows x cols, Coronal: depth x cols, Sagittal: rows x depth
+     * Oblique planes are only available from an ObliqueSeries.
+     * The returned Mat may be reused by the next call.
+     */
+    fun plane(axis: Axis, index: Int): Mat
+
+    /*
+     * Hint that transverse browsing is moving from [index] in [direction] (+1 or -1).
+     */
+    fun prefetch(index: Int, direction: Int) {
+    }
+
+    /*
+     * Build coronal and sagittal-major copies, so those planes are read as one contiguous block.
+     * Slow; call it off the UI thread. Returns false if the series doesn't keep copies.
+     */
+    fun buildAxisCopies(): Boolean {
+        return false
+    }
+
+    /*
+     * Free the copies (e.g. under memory pressure); planes fall back to strided reads.
+     */
+    fun dropAxisCopies() {
+    }
+}
@@ -0,0 +1,147 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import org.opencv.core.Core
+import org.opencv.core.Mat
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A series of equally sized slices stored in one contiguous Z×Y×X allocation.
+ *
+ * Transverse slices are zero-copy views into the volume. Coronal and sagittal planes
+ * are strided copies into one buffer per axis, which is overwritten by the next call,
+ * unless axis-major copies of the volume have been built; then they're views too.
+ */
+class DcmVolume(override val depth: Int, override val rows: Int, override val cols: Int,
+                override val type: Int) : DcmSeries {
+    // (depth * rows) x cols: slice z occupies rows [z * rows, (z + 1) * rows)
+    private val data = Mat(depth * rows, cols, type)
+    private val slices = Array(depth) { data.rowRange(it * rows, (it + 1) * rows) }
+
+    // The same memory viewed as depth x (rows * cols), where coronal plane y is a column range
+    private val coronalViews by lazy {
+        val byRow = data.reshape(1, depth)
+        Array(rows) { byRow.colRange(it * cols, (it + 1) * cols) }
+    }
+    private val sagittalViews by lazy { Array(cols) { data.col(it) } }
+
+    private val coronal by lazy { Mat(depth, cols, type) }
+    private val sagittalColumn by lazy { Mat(depth * rows, 1, type) }
+    private val sagittal by lazy { Mat(rows, depth, type) }
+
+    // Y-major (rows * depth) x cols and X-major (cols * rows) x depth copies, if built
+    @Volatile private var coronalMajor: Mat? = null
+    @Volatile private var sagittalMajor: Mat? = null
+    // Bumped by dropAxisCopies, so a build that was running at the time doesn't bring them back.
+    // Also held while a plane is taken from a copy, so it can't be released (on the UI thread) meanwhile.
+    private val copiesGeneration = AtomicInteger()
+
+    fun slice(z: Int): Mat = slices[z]
+
+    /** Every slice stacked top to bottom: (depth * rows) x cols */
+    internal val stack: Mat
+        get() = data
+
+    override fun plane(axis: Axis, index: Int): Mat {
+        return when (axis) {
+            Axis.TRANSVERSE -> slices[index]
+            Axis.CORONAL -> {
+                synchronized(copiesGeneration) {
+                    coronalMajor?.let { return it.rowRange(index * depth, (index + 1) * depth) }
+                }
+                copyStridedPlane(axis, index, coronal)
+                coronal
+            }
+            Axis.SAGITTAL -> {
+                synchronized(copiesGeneration) {
+                    sagittalMajor?.let { return it.rowRange(index * rows, (index + 1) * rows) }
+                }
+                copyStridedPlane(axis, index, sagittal)
+                sagittal
+            }
+            Axis.OBLIQUE -> throw IllegalArgumentException("Oblique planes are resampled by ObliqueSeries")
+            Axis.VOLUME -> throw IllegalArgumentException("3D views are ray cast by VolumeView")
+        }
+    }
+
+    /*
+     * Copy plane [index] straight from the slices into [dst], ignoring any axis-major copies.
+     * [column] is scratch space for sagittal planes, if not the volume's own.
+     */
+    internal fun copyStridedPlane(axis: Axis, index: Int, dst: Mat, column: Mat? = null) {
+        when (axis) {
+            Axis.TRANSVERSE -> slices[index].copyTo(dst)
+            Axis.CORONAL -> coronalViews[index].copyTo(dst)
+            Axis.SAGITTAL -> {
+                // Gather column x of every slice (z-major), then flip it to y-major.
+                val gathered = column ?: sagittalColumn
+                sagittalViews[index].copyTo(gathered)
+                Core.transpose(gathered.reshape(1, depth), dst)
+            }
+            Axis.OBLIQUE -> throw IllegalArgumentException("Oblique planes are resampled by ObliqueSeries")
+            Axis.VOLUME -> throw IllegalArgumentException("3D views are ray cast by VolumeView")
+        }
+    }
+
+    override fun buildAxisCopies(): Boolean {
+        val generation = copiesGeneration.get()
+        if (coronalMajor != null && sagittalMajor != null) {
+            return true
+        }
+
+        // If building fails part-way (out of memory, or OpenCV), release what was allocated so far
+        val coronalCopy = Mat(rows * depth, cols, type)
+        val sagittalCopy = try {
+            for (y in 0 until rows) {
+                coronalViews[y].copyTo(coronalCopy.rowRange(y * depth, (y + 1) * depth))
+            }
+            buildSagittalCopy()
+        } catch (ex: Throwable) {
+            coronalCopy.release()
+            throw ex
+        }
+
+        synchronized(copiesGeneration) {
+            if (generation != copiesGeneration.get()) {
+                coronalCopy.release()
+                sagittalCopy.release()
+                return false
+            }
+            coronalMajor = coronalCopy
+            sagittalMajor = sagittalCopy
+        }
+        return true
+    }
+
+    private fun buildSagittalCopy(): Mat {
+        // Transpose each slice to x-major, then the whole stack, so every read and write is blocked.
+        val byX = Mat(depth, cols * rows, type)
+        try {
+            for (z in 0 until depth) {
+                val dst = byX.row(z).reshape(1, cols)
+                Core.transpose(slices[z], dst)
+            }
+            val sagittalCopy = Mat(cols * rows, depth, type)
+            try {
+                Core.transpose(byX, sagittalCopy)
+            } catch (ex: Throwable) {
+                sagittalCopy.release()
+                throw ex
+            }
+            return sagittalCopy
+        } finally {
+            byX.release()
+        }
+    }
+
+    override fun dropAxisCopies() {
+        synchronized(copiesGeneration) {
+            copiesGeneration.incrementAndGet()
+            // A plane still on screen holds its own reference, so its pixels outlive this.
+            coronalMajor?.release()
+            sagittalMajor?.release()
+            coronalMajor = null
+            sagittalMajor = null
+        }
+    }
+}
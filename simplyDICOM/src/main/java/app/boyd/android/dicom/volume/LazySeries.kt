@@ -0,0 +1,90 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import org.opencv.core.Mat
+
+/**
+ * A series whose slices are decoded as they're needed, through an optional [SliceCache].
+ *
+ * Transverse slices come from the cache, and are prefetched ahead of the direction of travel.
+ * Off-axis planes decode every slice directly, so they don't flush the cache.
+ */
+abstract class LazySeries(override val depth: Int, override val rows: Int, override val cols: Int,
+                          override val type: Int, private val seriesUID: String,
+                          private val cache: SliceCache?) : DcmSeries {
+    private val transverse by lazy { Mat(rows, cols, type) }
+    private val coronal by lazy { Mat(depth, cols, type) }
+    private val sagittal by lazy { Mat(rows, depth, type) }
+    private val scratch by lazy { Mat(rows, cols, type) }
+    private val generation = cache?.newGeneration() ?: 0
+
+    /*
+     * Decode slice [z] into [dst] (rows x cols). May be called from any thread.
+     */
+    protected abstract fun read(z: Int, dst: Mat)
+
+    /*
+     * False while slice [z] can't be decoded yet (e.g. it's still loading), so it isn't cached.
+     */
+    protected open fun isAvailable(z: Int): Boolean = true
+
+    override fun plane(axis: Axis, index: Int): Mat {
+        return when (axis) {
+            Axis.TRANSVERSE -> {
+                readCached(index, transverse)
+                transverse
+            }
+            Axis.CORONAL -> {
+                for (z in 0 until depth) {
+                    read(z, scratch)
+                    scratch.row(index).copyTo(coronal.row(z))
+                }
+                coronal
+            }
+            Axis.SAGITTAL -> {
+                for (z in 0 until depth) {
+                    read(z, scratch)
+                    scratch.col(index).copyTo(sagittal.col(z))
+                }
+                sagittal
+            }
+            Axis.OBLIQUE -> throw IllegalArgumentException("Oblique planes are resampled by ObliqueSeries")
+            Axis.VOLUME -> throw IllegalArgumentException("3D views are ray cast by VolumeView")
+        }
+    }
+
+    private fun readCached(z: Int, dst: Mat) {
+        val cache = cache
+        if (cache == null || !isAvailable(z)) {
+            read(z, dst)
+            return
+        }
+        val key = SliceCache.Key(seriesUID, generation, z)
+        if (!cache.copyTo(key, dst)) {
+            read(z, dst)
+            cache.put(key, dst.clone())
+        }
+    }
+
+    override fun prefetch(index: Int, direction: Int) {
+        val cache = cache ?: return
+        val jobs = (1..PREFETCH).map { index + it * direction }
+                .filter { it in 0 until depth }
+                .map { z ->
+                    Runnable {
+                        val key = SliceCache.Key(seriesUID, generation, z)
+                        if (isAvailable(z) && !cache.contains(key)) {
+                            val mat = Mat(rows, cols, type)
+                            read(z, mat)
+                            cache.put(key, mat)
+                        }
+                    }
+                }
+        cache.prefetch(jobs)
+    }
+
+    companion object {
+        // Slices decoded ahead of the current one
+        const val PREFETCH = 4
+    }
+}
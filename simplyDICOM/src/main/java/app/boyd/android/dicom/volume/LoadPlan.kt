@@ -0,0 +1,72 @@
+package app.boyd.android.dicom.volume
+
+import android.app.ActivityManager
+import android.content.Context
+import app.boyd.android.dicom.matType
+import org.dcm4che3.data.Attributes
+import org.dcm4che3.data.Tag
+import org.opencv.core.CvType
+
+enum class LoadStrategy {
+    // Every slice decoded into one native DcmVolume
+    FULL,
+    // Slices deflated onto the Java heap and inflated as they're viewed
+    COMPRESSED,
+    // Every slice decoded at a reduced in-plane resolution
+    DOWNSAMPLED,
+    // Only a PixelData locator kept per slice, decoding slices as they're viewed
+    PAGED
+}
+
+/**
+ * How a series should be held in memory, decided from its decoded size before any pixels are read.
+ */
+class LoadPlan(val strategy: LoadStrategy, val decodedBytes: Long, val downsample: Int = 1) {
+    companion object {
+        // Fraction of the available memory a series may claim
+        private const val NATIVE_BUDGET = 0.5
+        private const val HEAP_BUDGET = 0.5
+        // Conservative deflate ratio for medical images (they typically manage 2-4x)
+        private const val COMPRESSION_RATIO = 2.0
+        // Beyond half resolution, paging at full resolution beats a blurry volume
+        private const val DOWNSAMPLE = 2
+
+        fun create(decodedBytes: Long, heapHeadroom: Long, nativeHeadroom: Long): LoadPlan {
+            val nativeBudget = nativeHeadroom * NATIVE_BUDGET
+            if (decodedBytes <= nativeBudget) {
+                return LoadPlan(LoadStrategy.FULL, decodedBytes)
+            }
+            if (decodedBytes / COMPRESSION_RATIO <= heapHeadroom * HEAP_BUDGET) {
+                return LoadPlan(LoadStrategy.COMPRESSED, decodedBytes)
+            }
+            if (decodedBytes / (DOWNSAMPLE * DOWNSAMPLE) <= nativeBudget) {
+                return LoadPlan(LoadStrategy.DOWNSAMPLED, decodedBytes, DOWNSAMPLE)
+            }
+            return LoadPlan(LoadStrategy.PAGED, decodedBytes)
+        }
+    }
+}
+
+/*
+ * Plan how to load a series of [files] shaped like [attributes], from the current heap and native headroom.
+ */
+fun Context.planLoad(attributes: Attributes, files: Int): LoadPlan {
+    val rows = attributes.getInt(Tag.Rows, 1).toLong()
+    val cols = attributes.getInt(Tag.Columns, 1).toLong()
+    // Only the first frame of each file is kept, so NumberOfFrames doesn't add to the total.
+    val decodedBytes = rows * cols * CvType.ELEM_SIZE(attributes.matType()) * files
+
+    val runtime = Runtime.getRuntime()
+    val heapHeadroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())
+
+    return LoadPlan.create(decodedBytes, heapHeadroom, nativeHeadroom())
+}
+
+/*
+ * Mat data lives outside the Java heap, so it is only bound by the device's free memory.
+ */
+fun Context.nativeHeadroom(): Long {
+    val memoryInfo = ActivityManager.MemoryInfo()
+    (getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).getMemoryInfo(memoryInfo)
+    return (memoryInfo.availMem - memoryInfo.threshold).coerceAtLeast(0)
+}
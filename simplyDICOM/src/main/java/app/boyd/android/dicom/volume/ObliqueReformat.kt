@@ -0,0 +1,188 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.forEachBand
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Scalar
+import org.opencv.imgproc.Imgproc
+import kotlin.math.floor
+
+/**
+ * A plane through a volume, in mm from the centre of voxel (0, 0, 0) along the volume's x, y and z.
+ * Output pixel (r, c) samples origin + c * pixel * u + r * pixel * v, for unit vectors [u] and [v].
+ */
+class ObliquePlane(val origin: DoubleArray, val u: DoubleArray, val v: DoubleArray, val pixel: Double,
+                   val rows: Int, val cols: Int)
+
+/**
+ * Resamples planes through a [DcmVolume] with trilinear interpolation, in the volume's own type.
+ * [spacing] is the voxel size in mm along x, y and z. Samples outside the volume are [background].
+ *
+ * Sample positions are worked out in row bands on all cores. OpenCV's remap then interpolates each
+ * sample within the slices either side of it, and the two are blended by the distance between them.
+ * Buffers are kept between calls, so nothing is allocated unless the output size changes.
+ */
+class ObliqueReformat(private val volume: DcmVolume, private val spacing: DoubleArray) {
+    @Volatile var background = 0.0
+
+    // Per output pixel: x and y within a slice, the slice below, and the weight of the slice above
+    private var mapX = FloatArray(0)
+    private var mapY = FloatArray(0)
+    private var mapSlice = FloatArray(0)
+    private var mapFrac = FloatArray(0)
+    // Lowest and highest slice each output row samples (min > max if it's entirely outside)
+    private var rowMinSlice = IntArray(0)
+    private var rowMaxSlice = IntArray(0)
+    private val matX = Mat()
+    private val matY = Mat()
+    private val matSlice = Mat()
+    private val matFrac = Mat()
+    private val chunkSlice = Mat()
+    private val chunkY = Mat()
+    private val below = Mat()
+    private val above = Mat()
+    private val wideBelow = Mat()
+    private val wideAbove = Mat()
+
+    // remap takes sources under 32767 pixels high, so the slice stack is sampled a chunk of slices at a time
+    private val chunkSlices = ((Short.MAX_VALUE - 1) / volume.rows).coerceAtLeast(1)
+    // 32-bit integers can't be interpolated by remap
+    private val interpolation = if (volume.type == CvType.CV_32S) Imgproc.INTER_NEAREST else Imgproc.INTER_LINEAR
+
+    fun resample(plane: ObliquePlane, dst: Mat) {
+        val size = plane.rows * plane.cols
+        if (mapX.size != size) {
+            mapX = FloatArray(size)
+            mapY = FloatArray(size)
+            mapSlice = FloatArray(size)
+            mapFrac = FloatArray(size)
+        }
+        if (rowMinSlice.size != plane.rows) {
+            rowMinSlice = IntArray(plane.rows)
+            rowMaxSlice = IntArray(plane.rows)
+        }
+        buildMaps(plane)
+        put(matX, mapX, plane)
+        put(matY, mapY, plane)
+        put(matSlice, mapSlice, plane)
+        put(matFrac, mapFrac, plane)
+        chunkSlice.create(plane.rows, plane.cols, CvType.CV_32F)
+        chunkY.create(plane.rows, plane.cols, CvType.CV_32F)
+
+        below.create(plane.rows, plane.cols, volume.type)
+        above.create(plane.rows, plane.cols, volume.type)
+        below.setTo(Scalar(background))
+        above.setTo(Scalar(background))
+        val stack = volume.stack
+        var first = 0
+        while (first < volume.depth) {
+            val last = (first + chunkSlices).coerceAtMost(volume.depth)
+            val chunk = stack.rowRange(first * volume.rows, last * volume.rows)
+            // Samples from other chunks land outside this one, and are left alone
+            remapChunk(chunk, first, last, 0, below)
+            remapChunk(chunk, first, last, 1, above)
+            first = last
+        }
+
+        // below + (above - below) * frac
+        below.convertTo(wideBelow, CvType.CV_32F)
+        above.convertTo(wideAbove, CvType.CV_32F)
+        Core.subtract(wideAbove, wideBelow, wideAbove)
+        Core.multiply(wideAbove, matFrac, wideAbove)
+        Core.add(wideBelow, wideAbove, wideBelow)
+        dst.create(plane.rows, plane.cols, volume.type)
+        wideBelow.convertTo(dst, volume.type)
+    }
+
+    /*
+     * Sample slices [first, last) of the chunk, [shift] slices above each pixel's slice, into [dst].
+     */
+    private fun remapChunk(chunk: Mat, first: Int, last: Int, shift: Int, dst: Mat) {
+        // Only the output rows that sample this chunk
+        var top = -1
+        var bottom = -1
+        for (r in rowMinSlice.indices) {
+            if (rowMinSlice[r] + shift < last && rowMaxSlice[r] + shift >= first) {
+                if (top < 0) {
+                    top = r
+                }
+                bottom = r + 1
+            }
+        }
+        if (top < 0) {
+            return
+        }
+        // Row within the chunk: (slice + shift - first) * rows + y, exact for every sample inside it
+        val slices = chunkSlice.rowRange(top, bottom)
+        val y = chunkY.rowRange(top, bottom)
+        Core.subtract(matSlice.rowRange(top, bottom), Scalar((first - shift).toDouble()), slices)
+        Core.scaleAdd(slices, volume.rows.toDouble(), matY.rowRange(top, bottom), y)
+        Imgproc.remap(chunk, dst.rowRange(top, bottom), matX.rowRange(top, bottom), y, interpolation,
+                Core.BORDER_TRANSPARENT, Scalar(background))
+    }
+
+    private fun put(mat: Mat, values: FloatArray, plane: ObliquePlane) {
+        mat.create(plane.rows, plane.cols, CvType.CV_32F)
+        mat.put(0, 0, values)
+    }
+
+    /*
+     * Voxel coordinates of every output pixel, split across the render threads by rows.
+     */
+    private fun buildMaps(plane: ObliquePlane) {
+        forEachBand(plane.rows, MIN_BAND_ROWS) { first, last -> mapRows(plane, first, last) }
+    }
+
+    private fun mapRows(plane: ObliquePlane, first: Int, last: Int) {
+        val cols = plane.cols
+        // Voxel steps per output column and row
+        val ux = plane.u[0] * plane.pixel / spacing[0]
+        val uy = plane.u[1] * plane.pixel / spacing[1]
+        val uz = plane.u[2] * plane.pixel / spacing[2]
+        val vx = plane.v[0] * plane.pixel / spacing[0]
+        val vy = plane.v[1] * plane.pixel / spacing[1]
+        val vz = plane.v[2] * plane.pixel / spacing[2]
+        // Samples stay clear of the last row and column, or remap would skip them as out of range
+        val maxX = volume.cols - 1 - EDGE
+        val maxY = volume.rows - 1 - EDGE
+        val maxZ = (volume.depth - 1).toDouble()
+        val topSlice = (volume.depth - 2).coerceAtLeast(0)
+        for (r in first until last) {
+            var x = plane.origin[0] / spacing[0] + r * vx
+            var y = plane.origin[1] / spacing[1] + r * vy
+            var z = plane.origin[2] / spacing[2] + r * vz
+            var i = r * cols
+            var minSlice = Int.MAX_VALUE
+            var maxSlice = Int.MIN_VALUE
+            for (c in 0 until cols) {
+                if (x < 0.0 || y < 0.0 || z < 0.0 || x > volume.cols - 1 || y > volume.rows - 1 || z > maxZ) {
+                    mapX[i] = OUTSIDE
+                    mapY[i] = OUTSIDE
+                    mapSlice[i] = 0.0f
+                    mapFrac[i] = 0.0f
+                } else {
+                    val slice = floor(z).toInt().coerceAtMost(topSlice)
+                    mapX[i] = x.coerceAtMost(maxX).toFloat()
+                    mapY[i] = y.coerceAtMost(maxY).toFloat()
+                    mapSlice[i] = slice.toFloat()
+                    mapFrac[i] = (z - slice).toFloat().coerceAtMost(1.0f)
+                    minSlice = minOf(minSlice, slice)
+                    maxSlice = maxOf(maxSlice, slice)
+                }
+                x += ux
+                y += uy
+                z += uz
+                i++
+            }
+            rowMinSlice[r] = minSlice
+            rowMaxSlice[r] = maxSlice
+        }
+    }
+
+    companion object {
+        private const val MIN_BAND_ROWS = 32
+        private const val EDGE = 0.05
+        private const val OUTSIDE = -16.0f
+    }
+}
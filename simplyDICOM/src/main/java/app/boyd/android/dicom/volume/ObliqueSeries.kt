@@ -0,0 +1,73 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import org.opencv.core.Mat
+import kotlin.math.ceil
+import kotlin.math.cos
+import kotlin.math.hypot
+import kotlin.math.sin
+
+/**
+ * A [DcmVolume] that can also be browsed along [Axis.OBLIQUE]: vertical planes turned [angle] degrees
+ * from coronal about the volume's z axis. Index steps along the plane's normal, through the centre.
+ * [spacing] is the voxel size in mm along x, y and z; oblique pixels are square.
+ *
+ * While [preview] is set (e.g. during a rotation gesture) planes are resampled at half resolution.
+ */
+class ObliqueSeries(private val volume: DcmVolume, private val spacing: DoubleArray) : DcmSeries by volume {
+    private val reformat = ObliqueReformat(volume, spacing)
+    private val oblique = Mat()
+
+    // Set from the UI thread while planes are resampled on the renderer's
+    @Volatile var angle = 0.0
+    @Volatile var preview = false
+
+    var background: Double
+        get() = reformat.background
+        set(value) {
+            reformat.background = value
+        }
+
+    // Square pixels, as fine as the volume's in-plane spacing
+    private val pixel = minOf(spacing[0], spacing[1])
+    // Planes at any angle fit across the volume's diagonal
+    private val diagonal = hypot(volume.cols * spacing[0], volume.rows * spacing[1])
+    private val height = (volume.depth - 1) * spacing[2]
+
+    override fun size(axis: Axis): Int {
+        return when (axis) {
+            Axis.OBLIQUE -> ceil(diagonal / pixel).toInt().coerceAtLeast(1)
+            else -> volume.size(axis)
+        }
+    }
+
+    override fun plane(axis: Axis, index: Int): Mat {
+        if (axis != Axis.OBLIQUE) {
+            return volume.plane(axis, index)
+        }
+        reformat.resample(obliquePlane(index), oblique)
+        return oblique
+    }
+
+    /*
+     * Where oblique plane [index] lies at the current angle.
+     */
+    fun obliquePlane(index: Int): ObliquePlane {
+        val step = if (preview) pixel * 2.0 else pixel
+        val angle = angle
+        val cols = ceil(diagonal / step).toInt().coerceAtLeast(1)
+        val rows = (ceil(height / step).toInt() + 1).coerceAtLeast(1)
+        val theta = Math.toRadians(angle)
+        val u = doubleArrayOf(cos(theta), sin(theta), 0.0)
+        val v = doubleArrayOf(0.0, 0.0, 1.0)
+        val normal = doubleArrayOf(-sin(theta), cos(theta), 0.0)
+
+        val offset = (index - (size(Axis.OBLIQUE) - 1) / 2.0) * pixel
+        val centre = doubleArrayOf((volume.cols - 1) * spacing[0] / 2.0, (volume.rows - 1) * spacing[1] / 2.0, height / 2.0)
+        val halfWidth = (cols - 1) * step / 2.0
+        val halfHeight = (rows - 1) * step / 2.0
+        val origin = DoubleArray(3) { centre[it] + offset * normal[it] - halfWidth * u[it] - halfHeight * v[it] }
+
+        return ObliquePlane(origin, u, v, step, rows, cols)
+    }
+}
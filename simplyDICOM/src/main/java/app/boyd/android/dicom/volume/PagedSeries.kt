@@ -0,0 +1,45 @@
+package app.boyd.android.dicom.volume
+
+import android.content.Context
+import android.net.Uri
+import app.boyd.android.dicom.DcmProbe
+import app.boyd.android.dicom.PixelDataInfo
+import app.boyd.android.dicom.readPixels
+import org.dcm4che3.data.Attributes
+import org.opencv.core.Mat
+import org.opencv.core.Scalar
+
+/**
+ * Where a slice's pixels live: a file and the location of its PixelData value,
+ * or a Mat that was already decoded (e.g. the file that was opened).
+ */
+class SliceLocator(val uri: Uri?, val pixelData: PixelDataInfo?, val mat: Mat? = null)
+
+/**
+ * A series that holds only metadata and a locator per slice, decoding each slice when it's viewed.
+ *
+ * Every slice shares [attributes] (the series was validated for equal size and type),
+ * so a locator is all that's needed to decode it.
+ */
+class PagedSeries(context: Context, private val attributes: Attributes, private val slices: List<SliceLocator>,
+                  rows: Int, cols: Int, type: Int, seriesUID: String, cache: SliceCache?) :
+        LazySeries(slices.size, rows, cols, type, seriesUID, cache) {
+    // Don't hold on to the activity that started the load
+    private val context = context.applicationContext
+
+    // Off-axis planes decode the whole series from storage
+    override val resliceable = false
+
+    override fun read(z: Int, dst: Mat) {
+        val slice = slices[z]
+        val mat = slice.mat
+        if (mat != null) {
+            mat.copyTo(dst)
+            return
+        }
+        val uri = slice.uri
+        if (uri == null || !context.readPixels(uri, DcmProbe(attributes, slice.pixelData), dst)) {
+            dst.setTo(Scalar(0.0))
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.LutParams
+import app.boyd.android.dicom.LutRenderer
+import app.boyd.android.dicom.forEachBand
+import kotlin.math.ceil
+import kotlin.math.cos
+import kotlin.math.floor
+import kotlin.math.pow
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * A view of a volume: turned [yaw] degrees about its z axis, then tilted [pitch] degrees about the screen's x axis,
+ * rendered [size] pixels square with samples every [step] voxels (of the finest spacing).
+ */
+class RayView(val yaw: Double, val pitch: Double, val size: Int, val step: Double)
+
+/**
+ * Renders a [BrickedVolume] by casting a parallel ray through every pixel and compositing samples
+ * front to back. [spacing] is the voxel size in mm along x, y and z.
+ *
+ * The transfer function follows the 2D window: samples take the colormap's color for their value,
+ * and are transparent below the window, growing opaque towards its top.
+ * Rays stop once they're nearly opaque, and jump straight across bricks whose whole range is transparent.
+ * Rows are split across all cores. Not thread-safe: render from one thread at a time.
+ */
+class RayCaster(private val bricks: BrickedVolume, private val spacing: DoubleArray) {
+    private val unit = minOf(spacing[0], minOf(spacing[1], spacing[2]))
+    // Volume extent in mm, between the outer voxel centres
+    private val extentX = (bricks.cols - 1) * spacing[0]
+    private val extentY = (bricks.rows - 1) * spacing[1]
+    private val extentZ = (bricks.depth - 1) * spacing[2]
+    private val diagonal = sqrt(extentX * extentX + extentY * extentY + extentZ * extentZ).coerceAtLeast(unit)
+
+    // Transfer function per stored value bin: opacity per step, and color premultiplied by it
+    private val span = (bricks.max - bricks.min).toLong()
+    private val bins = (span + 1).coerceAtMost(MAX_BINS.toLong()).toInt()
+    private val binScale = if (span > 0) (bins - 1).toDouble() / span else 0.0
+    private val alpha = FloatArray(bins)
+    private val red = FloatArray(bins)
+    private val green = FloatArray(bins)
+    private val blue = FloatArray(bins)
+    private val emptyBricks = BooleanArray(bricks.brickMin.size)
+    private var tableParams: LutParams? = null
+    private var tableStep = 0.0
+
+    /*
+     * Render [view] into [pixels] (ARGB, size x size) with the window and colormap in [params].
+     */
+    fun render(view: RayView, params: LutParams, pixels: IntArray) {
+        val step = view.step * unit
+        updateTables(params, step)
+
+        // Camera axes in mm: right, down, and the way rays travel. Unturned, the view is from the front.
+        val yaw = Math.toRadians(view.yaw)
+        val pitch = Math.toRadians(view.pitch)
+        val right = doubleArrayOf(cos(yaw), sin(yaw), 0.0)
+        val ahead = doubleArrayOf(-sin(yaw), cos(yaw), 0.0)
+        val down = DoubleArray(3) { (if (it == 2) 1.0 else 0.0) * cos(pitch) - ahead[it] * sin(pitch) }
+        val forward = DoubleArray(3) { ahead[it] * cos(pitch) + (if (it == 2) 1.0 else 0.0) * sin(pitch) }
+
+        val size = view.size
+        val pixel = diagonal / size
+        val centre = doubleArrayOf(extentX / 2.0, extentY / 2.0, extentZ / 2.0)
+        forEachBand(size, MIN_BAND_ROWS) { first, last ->
+            val origin = DoubleArray(3)
+            for (r in first until last) {
+                val dy = (r + 0.5 - size / 2.0) * pixel
+                for (c in 0 until size) {
+                    val dx = (c + 0.5 - size / 2.0) * pixel
+                    for (i in 0..2) {
+                        origin[i] = centre[i] + dx * right[i] + dy * down[i] - diagonal / 2.0 * forward[i]
+                    }
+                    pixels[r * size + c] = castRay(origin, forward, step)
+                }
+            }
+        }
+    }
+
+    /*
+     * Composite one ray from [origin] (mm) along unit vector [direction], sampling every [step] mm.
+     */
+    private fun castRay(origin: DoubleArray, direction: DoubleArray, step: Double): Int {
+        // Where the ray is inside the volume's box
+        var near = 0.0
+        var far = diagonal
+        for (i in 0..2) {
+            val extent = when (i) {
+                0 -> extentX
+                1 -> extentY
+                else -> extentZ
+            }
+            if (direction[i] == 0.0) {
+                if (origin[i] < 0.0 || origin[i] > extent) return BLACK
+            } else {
+                val t0 = (0.0 - origin[i]) / direction[i]
+                val t1 = (extent - origin[i]) / direction[i]
+                near = maxOf(near, minOf(t0, t1))
+                far = minOf(far, maxOf(t0, t1))
+            }
+        }
+        if (near > far) {
+            return BLACK
+        }
+
+        // Positions in voxels, and voxels per mm along the ray
+        val ox = origin[0] / spacing[0]
+        val oy = origin[1] / spacing[1]
+        val oz = origin[2] / spacing[2]
+        val vx = direction[0] / spacing[0]
+        val vy = direction[1] / spacing[1]
+        val vz = direction[2] / spacing[2]
+        val maxX = bricks.cols - 1.0
+        val maxY = bricks.rows - 1.0
+        val maxZ = bricks.depth - 1.0
+        val brickSize = bricks.brickSize
+
+        var r = 0.0f
+        var g = 0.0f
+        var b = 0.0f
+        var a = 0.0f
+        // Samples sit on a grid from the ray's origin, so neighbouring rays sample alike
+        var t = ceil(near / step) * step
+        while (t <= far && a < OPAQUE) {
+            val x = (ox + t * vx).coerceIn(0.0, maxX)
+            val y = (oy + t * vy).coerceIn(0.0, maxY)
+            val z = (oz + t * vz).coerceIn(0.0, maxZ)
+            val ix = x.toInt()
+            val iy = y.toInt()
+            val iz = z.toInt()
+            if (emptyBricks[bricks.brick(ix, iy, iz)]) {
+                // Jump to the first sample past the brick's far side
+                val exit = minOf(exitDistance(x, vx, ix, brickSize),
+                        minOf(exitDistance(y, vy, iy, brickSize), exitDistance(z, vz, iz, brickSize)))
+                // At least one step on: on the face the ray leaves through (or clamped to the volume) the exit is 0,
+                // and rounding could land on the same sample again
+                t = maxOf((floor((t + exit) / step) + 1.0) * step, t + step)
+                continue
+            }
+            val bin = ((bricks.sample(x, y, z) - bricks.min) * binScale).toInt().coerceIn(0, bins - 1)
+            val sampleAlpha = alpha[bin]
+            if (sampleAlpha > 0.0f) {
+                val weight = 1.0f - a
+                r += weight * red[bin]
+                g += weight * green[bin]
+                b += weight * blue[bin]
+                a += weight * sampleAlpha
+            }
+            t += step
+        }
+        return (0xFF shl 24) or (channel(r) shl 16) or (channel(g) shl 8) or channel(b)
+    }
+
+    // Distance along the ray (mm) from [position] to the far side of its brick, moving [perMm] voxels per mm
+    private fun exitDistance(position: Double, perMm: Double, voxel: Int, brickSize: Int): Double {
+        val start = voxel / brickSize * brickSize
+        return when {
+            perMm > 0.0 -> (start + brickSize - position) / perMm
+            perMm < 0.0 -> (start - position) / perMm
+            else -> Double.MAX_VALUE
+        }
+    }
+
+    private fun channel(value: Float): Int = (value * 255.0f + 0.5f).toInt().coerceIn(0, 255)
+
+    /*
+     * Rebuild the transfer function, and which bricks it makes transparent, when the window or step changes.
+     */
+    private fun updateTables(params: LutParams, step: Double) {
+        if (params == tableParams && step == tableStep) {
+            return
+        }
+        tableParams = params
+        tableStep = step
+        val palette = LutRenderer.palette(params.colormap)
+        val width = if (params.width > 0.0) params.width else Double.MIN_VALUE
+        // Opacity is given per voxel of the finest spacing, then corrected for the step length
+        val exponent = step / unit
+        for (i in 0 until bins) {
+            val stored = (bricks.min + (if (binScale > 0.0) i / binScale else 0.0)).toInt()
+            val position = ((stored * params.slope + params.intercept - params.low) / width).coerceIn(0.0, 1.0)
+            val opacity = (1.0 - (1.0 - position * position * MAX_OPACITY).pow(exponent)).toFloat()
+            val color = palette[LutRenderer.index(stored, params)]
+            alpha[i] = opacity
+            red[i] = opacity * ((color shr 16) and 0xFF) / 255.0f
+            green[i] = opacity * ((color shr 8) and 0xFF) / 255.0f
+            blue[i] = opacity * (color and 0xFF) / 255.0f
+        }
+        // Opacity only rises through the window, so a range is transparent if both its ends are
+        for (i in emptyBricks.indices) {
+            emptyBricks[i] = alpha[bin(bricks.brickMin[i])] == 0.0f && alpha[bin(bricks.brickMax[i])] == 0.0f
+        }
+    }
+
+    private fun bin(stored: Int): Int = ((stored - bricks.min) * binScale).toInt().coerceIn(0, bins - 1)
+
+    companion object {
+        // Rays stop once this opaque
+        private const val OPAQUE = 0.98f
+        // Opacity of a voxel at the top of the window
+        private const val MAX_OPACITY = 0.1
+        private const val MAX_BINS = 65536
+        private const val MIN_BAND_ROWS = 8
+        private const val BLACK = 0xFF shl 24
+    }
+}
@@ -0,0 +1,140 @@
+package app.boyd.android.dicom.volume
+
+import app.boyd.android.dicom.Axis
+import app.boyd.android.dicom.forEachBand
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import kotlin.math.floor
+
+/**
+ * How the planes across a slab are combined into one.
+ */
+enum class SlabMode {
+    NONE,
+    /** Maximum intensity projection */
+    MAX,
+    /** Minimum intensity projection */
+    MIN,
+    /** Average intensity */
+    MEAN
+}
+
+/**
+ * [base], with each plane projected through a slab [thickness] mm thick, centred on it.
+ * [spacing] is the voxel size in mm along x, y and z. Oblique planes are passed through.
+ *
+ * Projections are worked out in row bands on all cores. The average keeps a running sum, so
+ * stepping the slab by one plane adds the plane entering it and subtracts the one leaving it.
+ */
+class SlabSeries(private val base: DcmSeries, private val spacing: DoubleArray) : DcmSeries by base {
+    // Set from the UI thread while planes are projected on the renderer's
+    @Volatile var mode = SlabMode.NONE
+    @Volatile var thickness = 10.0
+
+    private val slab = Mat()
+    private val noMask = Mat()
+
+    // Running sum of planes [sumFirst, sumLast] along sumAxis, if any
+    private val sum = Mat()
+    private var sumAxis: Axis? = null
+    private var sumFirst = 0
+    private var sumLast = -1
+    // Wide enough for any series depth (32-bit sums overflow on 32-bit pixels)
+    private val sumType = if (base.type == CvType.CV_32S) CvType.CV_64F else CvType.CV_32S
+
+    /*
+     * Planes either side of the centre plane along [axis], in a slab [thickness] mm thick.
+     */
+    fun halfWidth(axis: Axis, thickness: Double = this.thickness): Int {
+        val step = when (axis) {
+            Axis.TRANSVERSE -> spacing[2]
+            Axis.CORONAL -> spacing[1]
+            Axis.SAGITTAL -> spacing[0]
+            Axis.OBLIQUE, Axis.VOLUME -> return 0
+        }
+        return floor(thickness / step / 2.0).toInt().coerceAtLeast(0)
+    }
+
+    override fun plane(axis: Axis, index: Int): Mat {
+        // Read once, so a change part way through doesn't mix settings
+        val mode = mode
+        val half = halfWidth(axis, thickness)
+        if (mode == SlabMode.NONE || half == 0) {
+            return base.plane(axis, index)
+        }
+        val first = (index - half).coerceAtLeast(0)
+        val last = (index + half).coerceAtMost(base.size(axis) - 1)
+        return when (mode) {
+            SlabMode.MEAN -> mean(axis, first, last)
+            else -> project(axis, first, last, mode == SlabMode.MAX)
+        }
+    }
+
+    /*
+     * Max or min over planes [first, last]. Each base plane is used up before the next is fetched,
+     * as the base may reuse its buffer.
+     */
+    private fun project(axis: Axis, first: Int, last: Int, max: Boolean): Mat {
+        base.plane(axis, first).copyTo(slab)
+        for (i in first + 1..last) {
+            val plane = base.plane(axis, i)
+            forEachBand(slab.rows(), MIN_BAND_ROWS) { top, bottom ->
+                val dst = slab.rowRange(top, bottom)
+                if (max) {
+                    Core.max(dst, plane.rowRange(top, bottom), dst)
+                } else {
+                    Core.min(dst, plane.rowRange(top, bottom), dst)
+                }
+            }
+        }
+        return slab
+    }
+
+    private fun mean(axis: Axis, first: Int, last: Int): Mat {
+        if (sumAxis != axis || first > sumLast || last < sumFirst) {
+            // Nothing to slide from
+            val plane = base.plane(axis, first)
+            sum.create(plane.rows(), plane.cols(), sumType)
+            plane.convertTo(sum, sumType)
+            sumAxis = axis
+            sumFirst = first
+            sumLast = first
+        }
+        while (sumFirst > first) {
+            accumulate(axis, --sumFirst, true)
+        }
+        while (sumLast < last) {
+            accumulate(axis, ++sumLast, true)
+        }
+        while (sumFirst < first) {
+            accumulate(axis, sumFirst++, false)
+        }
+        while (sumLast > last) {
+            accumulate(axis, sumLast--, false)
+        }
+
+        val scale = 1.0 / (last - first + 1)
+        slab.create(sum.rows(), sum.cols(), base.type)
+        forEachBand(sum.rows(), MIN_BAND_ROWS) { top, bottom ->
+            sum.rowRange(top, bottom).convertTo(slab.rowRange(top, bottom), base.type, scale)
+        }
+        return slab
+    }
+
+    private fun accumulate(axis: Axis, index: Int, add: Boolean) {
+        val plane = base.plane(axis, index)
+        forEachBand(sum.rows(), MIN_BAND_ROWS) { top, bottom ->
+            val dst = sum.rowRange(top, bottom)
+            if (add) {
+                Core.add(dst, plane.rowRange(top, bottom), dst, noMask, sumType)
+            } else {
+                Core.subtract(dst, plane.rowRange(top, bottom), dst, noMask, sumType)
+            }
+        }
+    }
+
+    companion object {
+        private const val MIN_BAND_ROWS = 32
+    }
+}
@@ -0,0 +1,116 @@
+package app.boyd.android.dicom.volume
+
+import android.app.ActivityManager
+import android.content.Context
+import android.util.LruCache
+import org.opencv.core.Mat
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Decoded slices of series that aren't fully resident, bounded by their native size in bytes.
+ *
+ * Cached Mats never leave the cache: they're copied out under its lock, so an evicted Mat can be
+ * released straight away instead of waiting for its finalizer.
+ */
+class SliceCache(maxBytes: Int) {
+    /** Slice [z] of a series, from the load that was given [generation] */
+    data class Key(val seriesUID: String, val generation: Int, val z: Int)
+
+    private val generations = AtomicInteger()
+
+    private val hits = AtomicInteger()
+    private val misses = AtomicInteger()
+    private val evictions = AtomicInteger()
+
+    val hitCount: Int
+        get() = hits.get()
+    val missCount: Int
+        get() = misses.get()
+    val evictionCount: Int
+        get() = evictions.get()
+
+    private val cache = object : LruCache<Key, Mat>(maxBytes) {
+        override fun sizeOf(key: Key, value: Mat): Int {
+            return (value.total() * value.elemSize()).toInt()
+        }
+
+        override fun entryRemoved(evicted: Boolean, key: Key, oldValue: Mat, newValue: Mat?) {
+            if (evicted) {
+                evictions.incrementAndGet()
+            }
+            oldValue.release()
+        }
+    }
+
+    // One background thread; a new prefetch replaces any slices still waiting from the last one.
+    private val prefetcher = ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, LinkedBlockingQueue())
+
+    /*
+     * A generation for each loaded series. The same files can be loaded again as a different
+     * selection (so a different z order), which must not hit slices cached by an earlier load.
+     */
+    fun newGeneration(): Int = generations.incrementAndGet()
+
+    /*
+     * Copy a cached slice into dst. Returns false (a miss) if it isn't cached.
+     */
+    @Synchronized
+    fun copyTo(key: Key, dst: Mat): Boolean {
+        val mat = cache.get(key)
+        if (mat == null) {
+            misses.incrementAndGet()
+            return false
+        }
+        hits.incrementAndGet()
+        mat.copyTo(dst)
+        return true
+    }
+
+    @Synchronized
+    fun contains(key: Key): Boolean {
+        return cache.get(key) != null
+    }
+
+    /*
+     * Cache a slice, which now belongs to the cache.
+     */
+    @Synchronized
+    fun put(key: Key, mat: Mat) {
+        cache.put(key, mat)
+    }
+
+    fun prefetch(jobs: List<Runnable>) {
+        if (prefetcher.isShutdown) {
+            return
+        }
+        prefetcher.queue.clear()
+        jobs.forEach { prefetcher.execute(it) }
+    }
+
+    @Synchronized
+    fun clear() {
+        prefetcher.queue.clear()
+        cache.evictAll()
+    }
+
+    /*
+     * Clear the cache and stop its prefetch thread, once it won't be used again.
+     */
+    fun shutdown() {
+        prefetcher.shutdownNow()
+        clear()
+    }
+
+    companion object {
+        /*
+         * Size the cache from the device's memory class (a quarter of it).
+         */
+        fun create(context: Context): SliceCache {
+            val memoryClass = (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).memoryClass
+            return SliceCache(memoryClass / 4 * 1024 * 1024)
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package app.boyd.android.dicom.volume
+
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfFloat
+import org.opencv.core.MatOfInt
+import org.opencv.imgproc.Imgproc
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Intensity statistics of a slice (or a whole series), computed once when its pixels are decoded.
+ *
+ * The histogram covers the full range of the pixel type in [BINS] bins, so slices can be merged.
+ * It is empty for 32-bit pixels, whose range is too wide for that to be useful.
+ */
+class SliceStats(val min: Double, val max: Double, val mean: Double, val histogram: IntArray) {
+    companion object {
+        const val BINS = 256
+
+        fun of(mat: Mat): SliceStats {
+            val minMax = Core.minMaxLoc(mat)
+            return SliceStats(minMax.minVal, minMax.maxVal, Core.mean(mat).`val`[0], histogram(mat))
+        }
+
+        /*
+         * Combine the stats of equally sized slices.
+         */
+        fun merge(stats: List<SliceStats>): SliceStats? {
+            if (stats.isEmpty()) {
+                return null
+            }
+            val bins = stats[0].histogram.size
+            val histogram = IntArray(bins)
+            for (slice in stats) {
+                if (slice.histogram.size == bins) {
+                    for (i in 0 until bins) {
+                        histogram[i] += slice.histogram[i]
+                    }
+                }
+            }
+            return SliceStats(stats.minBy { it.min }!!.min, stats.maxBy { it.max }!!.max,
+                    stats.sumByDouble { it.mean } / stats.size, histogram)
+        }
+
+        private fun histogram(mat: Mat): IntArray {
+            val (low, high) = when (mat.type()) {
+                CvType.CV_8U -> Pair(0f, 256f)
+                CvType.CV_16U -> Pair(0f, 65536f)
+                CvType.CV_16S -> Pair(-32768f, 32768f)
+                else -> return IntArray(0)
+            }
+            // calcHist doesn't take signed 16-bit
+            val src = if (mat.type() == CvType.CV_16S) Mat().also { mat.convertTo(it, CvType.CV_32F) } else mat
+            val hist = Mat()
+            Imgproc.calcHist(listOf(src), MatOfInt(0), Mat(), hist, MatOfInt(BINS), MatOfFloat(low, high))
+            val counts = FloatArray(BINS)
+            hist.get(0, 0, counts)
+            return IntArray(BINS) { counts[it].toInt() }
+        }
+    }
+}
+
+/**
+ * Stats for each transverse slice of a series, filled in as slices are decoded, and for the series once all are in.
+ */
+class SeriesStats(depth: Int) {
+    private val slices = AtomicReferenceArray<SliceStats>(depth)
+
+    @Volatile
+    var volume: SliceStats? = null
+        private set
+
+    fun slice(z: Int): SliceStats? = slices.get(z)
+
+    fun set(z: Int, stats: SliceStats) {
+        slices.set(z, stats)
+    }
+
+    /*
+     * Reduce the slice stats to the series' (once every slice has been decoded).
+     */
+    fun complete() {
+        volume = SliceStats.merge((0 until slices.length()).mapNotNull { slices.get(it) })
+    }
+}
@@ -0,0 +1,44 @@
+package app.boyd.android.shared.image
+
+import android.graphics.Bitmap
+import java.util.ArrayDeque
+
+/**
+ * Mutable ARGB_8888 bitmaps bucketed by size, so frames can be rendered without allocating.
+ * Holds at most [maxBytes] of idle bitmaps; anything beyond that is left to the GC.
+ */
+class BitmapPool(private val maxBytes: Int) {
+    private val buckets = HashMap<Long, ArrayDeque<Bitmap>>()
+    private var idleBytes = 0
+
+    private fun key(width: Int, height: Int) = (width.toLong() shl 32) or height.toLong()
+
+    @Synchronized
+    fun get(width: Int, height: Int): Bitmap {
+        val bitmap = buckets[key(width, height)]?.pollLast()
+        if (bitmap != null) {
+            idleBytes -= bitmap.byteCount
+            return bitmap
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    }
+
+    /*
+     * Hand back a bitmap that is no longer displayed.
+     */
+    @Synchronized
+    fun put(bitmap: Bitmap) {
+        if (bitmap.isRecycled || !bitmap.isMutable || bitmap.config != Bitmap.Config.ARGB_8888 ||
+                idleBytes + bitmap.byteCount > maxBytes) {
+            return
+        }
+        buckets.getOrPut(key(bitmap.width, bitmap.height)) { ArrayDeque() }.addLast(bitmap)
+        idleBytes += bitmap.byteCount
+    }
+
+    @Synchronized
+    fun clear() {
+        buckets.clear()
+        idleBytes = 0
+    }
+}
@@ -1,6 +1,7 @@
 package app.boyd.android.shared.image
 
 import android.content.Context
+import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.DashPathEffect
 import android.graphics.Paint
@@ -9,11 +10,9 @@ import android.os.Build
 import android.util.AttributeSet
 import android.widget.ImageView
 import androidx.annotation.RequiresApi
-import app.boyd.android.dicom.adjustContrast
-import app.boyd.android.dicom.toBitmap
+import app.boyd.android.dicom.LutParams
+import app.boyd.android.dicom.LutRenderer
 import app.boyd.shared.X11Color
-import org.opencv.core.CvType
-import org.opencv.core.Mat
 
 class ImageContrastView : ImageView {
     // Paint and path effects used for drawing lines
@@ -25,6 +24,10 @@ class ImageContrastView : ImageView {
     private var mLevel = 0.0
     private var mMax = 0.0
     private var mMin = 0.0
+    // The colorbar is one row, reused until the view's width changes; it's only redrawn if its window changes
+    private var barPixels = IntArray(0)
+    private var barBitmap: Bitmap? = null
+    private var barParams: LutParams? = null
 
     /**
      * Constructors
@@ -53,13 +56,37 @@ class ImageContrastView : ImageView {
         mMin = (diff - imWidth) * (1.0 - brightness / 100.0)
 
         val n = diff.toInt().coerceAtLeast(1)
-        val cmap = Mat(1, n, CvType.CV_32S)
+        val params = LutParams(1.0, 0.0, mMin, imWidth, invertCmap, colormap)
+        val bitmap = barBitmap
+        if (bitmap != null && bitmap.width == n && params == barParams) {
+            // Only the lines move
+            invalidate()
+            return
+        }
+        drawColorbar(n, params)
+    }
+
+    /*
+     * Each column is its own pixel value, windowed through the main image's palette.
+     */
+    private fun drawColorbar(n: Int, params: LutParams) {
+        if (barPixels.size != n) {
+            barPixels = IntArray(n)
+        }
+        val palette = LutRenderer.palette(params.colormap)
         for (i in 0 until n) {
-            cmap.put(0, i, i.toDouble())
+            barPixels[i] = palette[LutRenderer.index(i, params)]
         }
 
-        val temp = cmap.adjustContrast(imWidth, mMin, invertCmap)
-        setImageBitmap(temp.toBitmap(colormap))
+        val reused = barBitmap?.takeIf { it.width == n }
+        val bitmap = reused ?: Bitmap.createBitmap(n, 1, Bitmap.Config.ARGB_8888).also { barBitmap = it }
+        bitmap.setPixels(barPixels, 0, n, 0, 0, n, 1)
+        barParams = params
+        if (reused == null) {
+            setImageBitmap(bitmap)
+        } else {
+            invalidate()
+        }
     }
 
     /**